@@ -76,12 +76,22 @@ public class ImageIO
 	}
 
 	public static ImagePlus withBFopenImp( File file )
+	{
+		return withBFopenImp( file, false );
+	}
+
+	/**
+	 * @param file
+	 * @param virtual if true, the image planes are only read from disk on demand
+	 * @return
+	 */
+	public static ImagePlus withBFopenImp( File file, boolean virtual )
 	{
 		try
 		{
 			ImporterOptions opts = new ImporterOptions();
 			opts.setId( file.toString() );
-			opts.setVirtual( false );
+			opts.setVirtual( virtual );
 
 			ImportProcess process = new ImportProcess( opts );
 			process.execute();
@@ -175,4 +185,23 @@ public class ImageIO
 
 		return calibratedRaiPlus;
 	}
+
+	/**
+	 * Opens the image lazily: the returned image is backed by a cache of
+	 * image planes, which are read from disk (via Bio-Formats) only when accessed.
+	 * Thus, e.g. sub-sampling and projecting a tomogram never holds
+	 * the full volume in memory.
+	 *
+	 * @param file
+	 * @return
+	 */
+	public static  < T extends RealType< T > & NativeType< T > >
+	CalibratedRaiPlus< T > withBFopenLazyRAI( File file )
+	{
+		ImagePlus imp = withBFopenImp( file, true );
+
+		final CalibratedRaiPlus< T > calibratedRaiPlus = new CalibratedRaiPlus<>( imp );
+
+		return calibratedRaiPlus;
+	}
 }
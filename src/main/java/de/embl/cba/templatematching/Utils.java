@@ -37,9 +37,20 @@ import net.imglib2.view.Views;
 import java.awt.*;
 import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -163,6 +174,21 @@ public class Utils
 		return floatProcessor;
 	}
 
+	public static FloatProcessor crop( FloatProcessor processor, int[] min, int[] size )
+	{
+		final float[] pixels = ( float[] ) processor.getPixels();
+		final int width = processor.getWidth();
+		final float[] cropped = new float[ size[ 0 ] * size[ 1 ] ];
+
+		for ( int y = 0; y < size[ 1 ]; y++ )
+			System.arraycopy(
+					pixels, ( min[ 1 ] + y ) * width + min[ 0 ],
+					cropped, y * size[ 0 ],
+					size[ 0 ] );
+
+		return new FloatProcessor( size[ 0 ], size[ 1 ], cropped );
+	}
+
 	public static  < T extends RealType< T > & NativeType< T > >
 	ByteProcessor asByteProcessor( RandomAccessibleInterval< T > rai )
 	{
@@ -624,6 +650,114 @@ public class Utils
 		} )).start();
 	}
 
+	/**
+	 * Splits [ 0, size ) into one contiguous range per thread and
+	 * processes the ranges concurrently; returns when all are done.
+	 *
+	 * The calling thread processes ranges as well, and the tasks submitted to the
+	 * service only take ranges which are not yet taken. Thus, waiting never depends
+	 * on queued tasks, such that one service can be shared by a whole run, also
+	 * by nested calls from its own tasks.
+	 *
+	 * @param size
+	 * @param numThreads
+	 * @param service may be null, in which case all ranges are processed by the calling thread
+	 * @param range consumes ( from inclusive, to exclusive )
+	 */
+	public static void parallelize(
+			int size,
+			int numThreads,
+			ExecutorService service,
+			BiConsumer< Integer, Integer > range )
+	{
+		final int chunkSize = Math.max( 1, ( size + numThreads - 1 ) / Math.max( 1, numThreads ) );
+		final int numChunks = ( size + chunkSize - 1 ) / chunkSize;
+
+		final AtomicInteger nextChunk = new AtomicInteger( 0 );
+		final CountDownLatch finishedChunks = new CountDownLatch( numChunks );
+		final AtomicReference< Throwable > error = new AtomicReference<>();
+
+		final Runnable worker = () ->
+		{
+			for ( int chunk = nextChunk.getAndIncrement(); chunk < numChunks; chunk = nextChunk.getAndIncrement() )
+			{
+				try
+				{
+					if ( error.get() == null )
+						range.accept( chunk * chunkSize, Math.min( size, ( chunk + 1 ) * chunkSize ) );
+				}
+				catch ( Throwable e )
+				{
+					error.compareAndSet( null, e );
+				}
+				finally
+				{
+					finishedChunks.countDown();
+				}
+			}
+		};
+
+		if ( service != null )
+			for ( int i = 1; i < numChunks; i++ )
+				service.execute( worker );
+
+		worker.run();
+
+		try
+		{
+			finishedChunks.await();
+		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( e );
+		}
+
+		if ( error.get() != null )
+			throw new RuntimeException( error.get() );
+	}
+
+	/**
+	 * Releases the memory of a direct (e.g. memory-mapped) buffer right away, rather than
+	 * when the buffer is garbage collected. There is no public API for this, thus the
+	 * JDK internal cleaner is invoked (Java 9+ via Unsafe.invokeCleaner, Java 8 via
+	 * DirectBuffer.cleaner()). The buffer and its views must not be accessed anymore.
+	 */
+	public static void freeDirectBuffer( ByteBuffer buffer )
+	{
+		try
+		{
+			final Class< ? > unsafeClass = Class.forName( "sun.misc.Unsafe" );
+			final Method invokeCleaner = unsafeClass.getMethod( "invokeCleaner", ByteBuffer.class );
+			final Field theUnsafe = unsafeClass.getDeclaredField( "theUnsafe" );
+			theUnsafe.setAccessible( true );
+			invokeCleaner.invoke( theUnsafe.get( null ), buffer );
+			return;
+		}
+		catch ( NoSuchMethodException e )
+		{
+			// Java 8
+		}
+		catch ( Exception e )
+		{
+			Utils.log( "Could not free buffer, it will be released by the garbage collector: " + e );
+			return;
+		}
+
+		try
+		{
+			final Method cleanerMethod = buffer.getClass().getMethod( "cleaner" );
+			cleanerMethod.setAccessible( true );
+			final Object cleaner = cleanerMethod.invoke( buffer );
+			if ( cleaner != null )
+				cleaner.getClass().getMethod( "clean" ).invoke( cleaner );
+		}
+		catch ( Exception e )
+		{
+			Utils.log( "Could not free buffer, it will be released by the garbage collector: " + e );
+		}
+	}
+
 	public static < T extends RealType< T > & NativeType< T > >
 	RandomAccessibleInterval< T > getRandomAccessibleInterval( SpimData spimData )
 	{
@@ -633,4 +767,38 @@ public class Utils
 		return image;
 	}
 
+	/**
+	 * @return hexadecimal SHA-256 digest of the UTF-8 encoded text
+	 */
+	public static String sha256( String text )
+	{
+		try
+		{
+			final byte[] digest = MessageDigest.getInstance( "SHA-256" )
+					.digest( text.getBytes( StandardCharsets.UTF_8 ) );
+
+			final StringBuilder hex = new StringBuilder();
+			for ( byte b : digest )
+				hex.append( String.format( "%02x", b ) );
+			return hex.toString();
+		}
+		catch ( NoSuchAlgorithmException e )
+		{
+			throw new RuntimeException( e );
+		}
+	}
+
+	/**
+	 * @return the text with the XML special characters replaced by entities,
+	 * for element content and attribute values
+	 */
+	public static String escapeXml( String text )
+	{
+		return text.replace( "&", "&amp;" )
+				.replace( "<", "&lt;" )
+				.replace( ">", "&gt;" )
+				.replace( "\"", "&quot;" )
+				.replace( "'", "&apos;" );
+	}
+
 }
@@ -2,10 +2,16 @@ package de.embl.cba.templatematching.browse;
 
 import bdv.spimdata.XmlIoSpimDataMinimal;
 import bdv.util.*;
+import bdv.viewer.Source;
 import bdv.viewer.SourceAndConverter;
 import de.embl.cba.bdv.utils.BdvUtils;
 import de.embl.cba.templatematching.bdv.BehaviourTransformEventHandler3DWithoutRotation;
+import de.embl.cba.templatematching.ImageIO;
+import de.embl.cba.templatematching.Utils;
 import de.embl.cba.templatematching.bdv.ImageSource;
+import de.embl.cba.templatematching.image.CalibratedRaiPlus;
+import de.embl.cba.templatematching.save.InputFileReference;
+import de.embl.cba.templatematching.save.N5Import;
 import mpicbg.spim.data.SpimData;
 import mpicbg.spim.data.SpimDataException;
 import mpicbg.spim.data.XmlIoSpimData;
@@ -19,6 +25,7 @@ import net.imglib2.view.IntervalView;
 import net.imglib2.view.Views;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -71,19 +78,30 @@ public class MatchedTemplatesBrowser< T extends RealType< T > & NativeType< T >
 
 	private void addToBdv( File file )
 	{
+		final BdvOptions options = BdvOptions.options()
+				.addTo( bdv )
+				.preferredSize( 800, 800 )
+				.transformEventHandlerFactory(
+						new BehaviourTransformEventHandler3DWithoutRotation
+								.BehaviourTransformEventHandler3DFactory() );
+
+		if ( N5Import.isN5Export( file ) )
+		{
+			addN5ToBdv( file, options );
+			return;
+		}
+
+		if ( InputFileReference.isReference( file ) )
+		{
+			addReferenceToBdv( file, options );
+			return;
+		}
+
 		final SpimData spimData = openSpimData( file );
 
 		setNames( spimData, file.getName() );
 
-		final BdvStackSource< ? > bdvStackSource = BdvFunctions.show(
-				spimData,
-				BdvOptions.options()
-						.addTo( bdv )
-						.preferredSize( 800, 800 )
-						.transformEventHandlerFactory(
-								new BehaviourTransformEventHandler3DWithoutRotation
-										.BehaviourTransformEventHandler3DFactory() )
-				).get( 0 );
+		final BdvStackSource< ? > bdvStackSource = BdvFunctions.show( spimData, options ).get( 0 );
 
 
 //		new Thread( () -> setAutoContrastDisplayRange( bdvStackSource ) ).start();
@@ -97,6 +115,71 @@ public class MatchedTemplatesBrowser< T extends RealType< T > & NativeType< T >
 		//Utils.updateBdv( bdv,1000 );
 	}
 
+	private void addN5ToBdv( File file, BdvOptions options )
+	{
+		final List< Source< ? > > sources;
+		try
+		{
+			sources = N5Import.open( file );
+		}
+		catch ( IOException e )
+		{
+			Utils.log( "Error: Could not open " + file + ": " + e );
+			e.printStackTrace();
+			return;
+		}
+
+		for ( Source< ? > source : sources )
+		{
+			final BdvStackSource< ? > bdvStackSource = BdvFunctions.show( source, options.addTo( bdv ) );
+
+			setColor( file, bdvStackSource );
+
+			bdv = bdvStackSource.getBdvHandle();
+		}
+	}
+
+	/**
+	 * Opens the referenced input file lazily and shows it at the matched position.
+	 */
+	private void addReferenceToBdv( File file, BdvOptions options )
+	{
+		final InputFileReference reference;
+		try
+		{
+			reference = InputFileReference.read( file );
+		}
+		catch ( IOException e )
+		{
+			Utils.log( "Error: Could not open " + file + ": " + e );
+			e.printStackTrace();
+			return;
+		}
+
+		final CalibratedRaiPlus< T > image = ImageIO.withBFopenLazyRAI( reference.file );
+
+		final ArrayList< RandomAccessibleInterval< T > > channels = new ArrayList<>();
+		if ( reference.isMultiChannel )
+			for ( long c = image.rai().min( 2 ); c <= image.rai().max( 2 ); c++ )
+				channels.add( Views.addDimension( Views.hyperSlice( image.rai(), 2, c ), 0, 0 ) );
+		else if ( image.rai().numDimensions() == 2 )
+			channels.add( Views.addDimension( image.rai(), 0, 0 ) );
+		else
+			channels.add( image.rai() );
+
+		for ( RandomAccessibleInterval< T > channel : channels )
+		{
+			final BdvStackSource< T > bdvStackSource = BdvFunctions.show(
+					channel,
+					reference.name,
+					options.addTo( bdv ).sourceTransform( reference.transform ) );
+
+			setColor( file, bdvStackSource );
+
+			bdv = bdvStackSource.getBdvHandle();
+		}
+	}
+
 	private void setNames( SpimData spimData, String name )
 	{
 		int n = spimData.getSequenceDescription().getViewSetupsOrdered().size();
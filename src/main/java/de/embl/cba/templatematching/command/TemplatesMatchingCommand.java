@@ -2,8 +2,12 @@ package de.embl.cba.templatematching.command;
 
 import de.embl.cba.templatematching.browse.MatchedTemplatesBrowser;
 import de.embl.cba.templatematching.browse.TemplatesBrowsingSettings;
+import de.embl.cba.templatematching.correlate.Correlators;
 import de.embl.cba.templatematching.match.TemplatesMatcher;
 import de.embl.cba.templatematching.match.TemplatesMatchingSettings;
+import de.embl.cba.templatematching.process.Processor;
+import de.embl.cba.templatematching.process.Projection;
+import de.embl.cba.templatematching.save.ResultsWriter;
 import ij.IJ;
 import org.scijava.command.Command;
 import org.scijava.plugin.Parameter;
@@ -28,6 +32,29 @@ public class TemplatesMatchingCommand implements Command
 	@Parameter ( label = "Angle between Overview and Templates" )
 	public double tomogramAngleDegrees = settings.overviewAngleDegrees;
 
+	@Parameter ( label = "Overview Rotation Interpolation", choices = { Processor.NEAREST, Processor.LINEAR } )
+	public String overviewInterpolation = settings.overviewInterpolation;
+
+	@Parameter ( label = "Search Angles around this Angle (Found Angle is Reported only)",
+			description = "Refines the matched positions; the found angle is logged, but not applied to the exported templates." )
+	public boolean rotationSearch = settings.rotationSearch;
+
+	@Parameter ( label = "Angle Search Range (+/-) [degrees]" )
+	public double rotationSearchRangeDegrees = settings.rotationSearchRangeDegrees;
+
+	@Parameter ( label = "Angle Search Step [degrees]" )
+	public double rotationSearchStepDegrees = settings.rotationSearchStepDegrees;
+
+	@Parameter ( label = "Search Scalings around the Pixel Spacing (not with Angle Search)",
+			description = "Skipped if angles are searched as well." )
+	public boolean scaleSearch = settings.scaleSearch;
+
+	@Parameter ( label = "Scaling Search Range (+/-, e.g. 0.05 for 5%)" )
+	public double scaleSearchRange = settings.scaleSearchRange;
+
+	@Parameter ( label = "Scaling Search Step" )
+	public double scaleSearchStep = settings.scaleSearchStep;
+
 	@Parameter ( label = "Output Directory", style = "directory" )
 	public File outputDirectory = settings.outputDirectory;
 
@@ -35,6 +62,30 @@ public class TemplatesMatchingCommand implements Command
 	public double pixelSpacingDuringMatching =
 			settings.matchingPixelSpacingNanometer;
 
+	@Parameter ( label = "Correlation Engine", choices = { Correlators.FFT, Correlators.OPENCV } )
+	public String correlationEngine = settings.correlationEngine;
+
+	@Parameter ( label = "Number of Templates Processed in Parallel" )
+	public int numTemplateThreads = settings.numTemplateThreads;
+
+	@Parameter ( label = "Coarse-to-fine Pyramid Levels (Put 0 for Exhaustive Search)" )
+	public int numPyramidLevels = settings.numPyramidLevels;
+
+	@Parameter ( label = "Flag Match as Ambiguous above Second / Best Peak Ratio" )
+	public double ambiguousPeakRatio = settings.ambiguousPeakRatio;
+
+	@Parameter ( label = "Search Windows (Optional CSV or JSON)", required = false )
+	public File searchWindowsFile = settings.searchWindowsFile;
+
+	@Parameter ( label = "Template Projection", choices = { Projection.AVERAGE, Projection.SUM, Projection.MAXIMUM, Projection.MINIMUM, Projection.MEDIAN } )
+	public String projectionMode = settings.projectionMode;
+
+	@Parameter ( label = "Template Projection Central Slices (Put 0 for All Slices)" )
+	public int projectionNumSlices = settings.projectionNumSlices;
+
+	@Parameter ( label = "Median Projection Histogram Bins (Put 0 for Exact Median)" )
+	public int medianNumBins = settings.medianNumBins;
+
 	@Parameter ( label = "Hierarchical matching" )
 	public boolean isHierarchicalMatching = false;
 
@@ -47,6 +98,10 @@ public class TemplatesMatchingCommand implements Command
 	@Parameter ( label = "Save Results in BigDataViewer Format" )
 	public boolean saveResultsAsBdv = settings.saveResultsAsBdv;
 
+	@Parameter ( label = "Results Format", choices = { ResultsWriter.BDV_HDF5, ResultsWriter.N5, ResultsWriter.REFERENCES },
+			description = "References to Input Files can only be opened with Plugins>Registration>Matched Template Browsing, not with BigDataViewer itself." )
+	public String exportFormat = settings.exportFormat;
+
 	public void run()
 	{
 		setSettings();
@@ -75,12 +130,28 @@ public class TemplatesMatchingCommand implements Command
 		settings.overviewImageFile = overviewImage;
 		settings.templatesInputDirectory = inputDirectory;
 		settings.overviewAngleDegrees = tomogramAngleDegrees;
+		settings.overviewInterpolation = overviewInterpolation;
+		settings.rotationSearch = rotationSearch;
+		settings.rotationSearchRangeDegrees = rotationSearchRangeDegrees;
+		settings.rotationSearchStepDegrees = rotationSearchStepDegrees;
+		settings.scaleSearch = scaleSearch;
+		settings.scaleSearchRange = scaleSearchRange;
+		settings.scaleSearchStep = scaleSearchStep;
 		settings.showIntermediateResults = ! runSilent;
 		settings.confirmScalingViaUI = false;
 		settings.matchingPixelSpacingNanometer = pixelSpacingDuringMatching;
 		settings.templatesRegExp = templatesRegExp;
 		settings.isHierarchicalMatching = isHierarchicalMatching;
 		settings.saveResultsAsBdv = saveResultsAsBdv;
+		settings.exportFormat = exportFormat;
+		settings.correlationEngine = correlationEngine;
+		settings.numTemplateThreads = numTemplateThreads;
+		settings.numPyramidLevels = numPyramidLevels;
+		settings.searchWindowsFile = searchWindowsFile;
+		settings.ambiguousPeakRatio = ambiguousPeakRatio;
+		settings.projectionMode = projectionMode;
+		settings.projectionNumSlices = projectionNumSlices;
+		settings.medianNumBins = medianNumBins;
 	}
 
 
@@ -0,0 +1,38 @@
+package de.embl.cba.templatematching.correlate;
+
+import ij.process.FloatProcessor;
+
+import java.util.concurrent.ExecutorService;
+
+public abstract class Correlators
+{
+	public static final String FFT = "Pure Java FFT";
+	public static final String OPENCV = "OpenCV";
+
+	public static TemplateCorrelator create(
+			String engine,
+			FloatProcessor overview,
+			int numThreads )
+	{
+		return create( engine, overview, numThreads, null, false );
+	}
+
+	/**
+	 * @param service computes the FFT correlation; may be shared, it is not shut down
+	 *                when the correlator is closed; if null, the correlator uses an own pool
+	 * @param isOffHeap if true, the FFT correlator keeps the overview and its cached spectrum
+	 *                  and integral images off-heap; OpenCV keeps them in native memory anyway
+	 */
+	public static TemplateCorrelator create(
+			String engine,
+			FloatProcessor overview,
+			int numThreads,
+			ExecutorService service,
+			boolean isOffHeap )
+	{
+		if ( OPENCV.equals( engine ) )
+			return new OpenCvTemplateCorrelator( overview );
+		else
+			return new FftTemplateCorrelator( overview, numThreads, service, isOffHeap );
+	}
+}
@@ -0,0 +1,634 @@
+package de.embl.cba.templatematching.correlate;
+
+import de.embl.cba.templatematching.Utils;
+import ij.process.FloatProcessor;
+import net.imglib2.FinalDimensions;
+import net.imglib2.algorithm.fft2.FFTMethods;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.complex.ComplexFloatType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Pure Java implementation of the normalized correlation coefficient
+ * (OpenCV's CV_TM_CCOEFF_NORMED).
+ *
+ * The numerator, i.e. the cross-correlation of the overview with the
+ * zero-mean template, is computed in the frequency domain using
+ * imglib2's FFT. The denominator, i.e. the standard deviation of the
+ * overview within each template sized window, is computed from
+ * summed-area tables (integral images) of the overview intensities
+ * and their squares.
+ *
+ * All per-pixel passes are multi-threaded across image rows, using a given
+ * thread pool, which may be shared by many correlators (e.g. of all tiles),
+ * or an own pool, which is shut down by close().
+ *
+ * Everything that only depends on the overview, i.e. its mean, its integral
+ * images and its forward transform, is computed once and reused for all
+ * templates. The padded FFT size only depends on the overview, thus there is
+ * exactly one overview spectrum, such that the per-template cost essentially is
+ * one forward transform of the (small) template and one inverse transform.
+ *
+ * Optionally, the overview and its cached spectrum and integral images are kept
+ * off-heap, in direct buffers, which are freed by close(); e.g. for the many cached
+ * tiles of tiled matching. Only the buffers of a single correlation are then on the heap.
+ */
+public class FftTemplateCorrelator implements TemplateCorrelator
+{
+	private static final double EPSILON = 10 * Math.ulp( 1.0F );
+	private static final ExecutorService CALLING_THREAD = new CallingThreadExecutorService();
+
+	private final FloatBuffer overview;
+	private final int overviewWidth;
+	private final int overviewHeight;
+	private final int numThreads;
+	private final ExecutorService service;
+	private final boolean isServiceOwned;
+	private final boolean isOffHeap;
+	private final ArrayList< ByteBuffer > directBuffers = new ArrayList<>();
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private boolean isClosed;
+	private FloatBuffer overviewSpectrum;
+	private final double overviewMean;
+	private DoubleBuffer[] integralImages;
+
+	public FftTemplateCorrelator( FloatProcessor overview, int numThreads )
+	{
+		this( overview, numThreads, null, false );
+	}
+
+	/**
+	 * @param overview
+	 * @param numThreads
+	 * @param service may be shared, it is not shut down by close(); if null, an own pool is used
+	 * @param isOffHeap if true, the overview and the cached spectrum and integral images are kept off-heap
+	 */
+	public FftTemplateCorrelator( FloatProcessor overview, int numThreads, ExecutorService service, boolean isOffHeap )
+	{
+		final float[] pixels = ( float[] ) overview.getPixels();
+		this.overviewWidth = overview.getWidth();
+		this.overviewHeight = overview.getHeight();
+		this.numThreads = Math.max( 1, numThreads );
+		this.isServiceOwned = service == null;
+		this.service = isServiceOwned ? Executors.newFixedThreadPool( this.numThreads ) : service;
+		this.isOffHeap = isOffHeap;
+
+		// Subtracting the overview mean does not change the correlation
+		// coefficient, but improves the numerical precision of the
+		// single precision FFT and of the integral images.
+		this.overviewMean = mean( pixels );
+		this.overview = asFloatBuffer( pixels );
+	}
+
+	@Override
+	public FloatProcessor correlate( FloatProcessor template )
+	{
+		lock.readLock().lock();
+		try
+		{
+			checkNotClosed();
+			return correlate( template, numThreads, service );
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Computes also the overview spectrum and integral images in the calling thread,
+	 * if they are not cached yet.
+	 */
+	@Override
+	public FloatProcessor correlateInCallingThread( FloatProcessor template )
+	{
+		lock.readLock().lock();
+		try
+		{
+			checkNotClosed();
+			return correlate( template, 1, CALLING_THREAD );
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	private void checkNotClosed()
+	{
+		if ( isClosed )
+			throw new IllegalStateException( "Correlator has been closed." );
+	}
+
+	/**
+	 * @return the values in a direct buffer if isOffHeap, otherwise wrapped
+	 */
+	private FloatBuffer asFloatBuffer( float[] values )
+	{
+		if ( ! isOffHeap ) return FloatBuffer.wrap( values );
+
+		final FloatBuffer buffer = allocateDirect( 4L * values.length ).asFloatBuffer();
+		buffer.put( values );
+		buffer.rewind();
+		return buffer;
+	}
+
+	private DoubleBuffer asDoubleBuffer( double[] values )
+	{
+		if ( ! isOffHeap ) return DoubleBuffer.wrap( values );
+
+		final DoubleBuffer buffer = allocateDirect( 8L * values.length ).asDoubleBuffer();
+		buffer.put( values );
+		buffer.rewind();
+		return buffer;
+	}
+
+	private synchronized ByteBuffer allocateDirect( long numBytes )
+	{
+		if ( numBytes > Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "Image too large for off-heap correlation: "
+					+ numBytes + " bytes; use smaller tiles." );
+
+		final ByteBuffer buffer = ByteBuffer.allocateDirect( ( int ) numBytes ).order( ByteOrder.nativeOrder() );
+		directBuffers.add( buffer );
+		return buffer;
+	}
+
+	private FloatProcessor correlate( FloatProcessor template, int numThreads, ExecutorService service )
+	{
+		final int templateWidth = template.getWidth();
+		final int templateHeight = template.getHeight();
+
+		if ( templateWidth > overviewWidth || templateHeight > overviewHeight )
+			throw new IllegalArgumentException( "Template ("
+					+ templateWidth + " x " + templateHeight
+					+ ") is larger than the overview ("
+					+ overviewWidth + " x " + overviewHeight + ")." );
+
+		final long[] paddedDimensions = new long[ 2 ];
+		final long[] fftDimensions = new long[ 2 ];
+		FFTMethods.dimensionsRealToComplexFast(
+				new FinalDimensions( overviewWidth, overviewHeight ),
+				paddedDimensions,
+				fftDimensions );
+
+		final FloatBuffer overviewSpectrum =
+				getOverviewSpectrum( paddedDimensions, fftDimensions, service );
+
+		final DoubleBuffer[] integralImages = getIntegralImages( numThreads, service );
+
+		final float[] templatePixels = ( float[] ) template.getPixels();
+		final double templateMean = mean( templatePixels );
+		final double templateNorm = norm( templatePixels, templateMean );
+
+		final float[] spectrum = forwardTransform(
+				FloatBuffer.wrap( templatePixels ), templateWidth, templateHeight, templateMean,
+				paddedDimensions, fftDimensions, service );
+
+		multiplyConjugate( overviewSpectrum, spectrum, numThreads, service );
+
+		final float[] crossCorrelation = inverseTransform(
+				spectrum, paddedDimensions, fftDimensions, service );
+
+		return normalize(
+				crossCorrelation,
+				( int ) paddedDimensions[ 0 ],
+				integralImages,
+				templateWidth,
+				templateHeight,
+				templateNorm,
+				numThreads,
+				service );
+	}
+
+	/**
+	 * Frees the off-heap buffers and shuts down the own thread pool;
+	 * correlating afterwards throws an IllegalStateException.
+	 */
+	@Override
+	public void close()
+	{
+		lock.writeLock().lock();
+		try
+		{
+			if ( isClosed ) return;
+			isClosed = true;
+
+			synchronized ( this )
+			{
+				overviewSpectrum = null;
+				integralImages = null;
+				for ( ByteBuffer buffer : directBuffers )
+					Utils.freeDirectBuffer( buffer );
+				directBuffers.clear();
+			}
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+
+		if ( isServiceOwned )
+			service.shutdown();
+	}
+
+	private synchronized FloatBuffer getOverviewSpectrum(
+			long[] paddedDimensions,
+			long[] fftDimensions,
+			ExecutorService service )
+	{
+		if ( overviewSpectrum == null )
+		{
+			Utils.log( "Computing overview spectrum, padded size: "
+					+ paddedDimensions[ 0 ] + " x " + paddedDimensions[ 1 ] );
+
+			overviewSpectrum = asFloatBuffer( forwardTransform(
+					overview, overviewWidth, overviewHeight, overviewMean,
+					paddedDimensions, fftDimensions, service ) );
+		}
+
+		return overviewSpectrum;
+	}
+
+	private synchronized DoubleBuffer[] getIntegralImages( int numThreads, ExecutorService service )
+	{
+		if ( integralImages == null )
+		{
+			Utils.log( "Computing overview integral images..." );
+			final double[][] sums = integralImages( overviewMean, numThreads, service );
+			integralImages = new DoubleBuffer[]{ asDoubleBuffer( sums[ 0 ] ), asDoubleBuffer( sums[ 1 ] ) };
+		}
+
+		return integralImages;
+	}
+
+	private static float[] forwardTransform(
+			FloatBuffer pixels,
+			int width,
+			int height,
+			double offset,
+			long[] paddedDimensions,
+			long[] fftDimensions,
+			ExecutorService service )
+	{
+		final int paddedWidth = ( int ) paddedDimensions[ 0 ];
+		final float[] padded = new float[ asArraySize( paddedDimensions[ 0 ] * paddedDimensions[ 1 ] ) ];
+
+		for ( int y = 0; y < height; y++ )
+		{
+			final int rowOffset = y * width;
+			final int paddedRowOffset = y * paddedWidth;
+			for ( int x = 0; x < width; x++ )
+				padded[ paddedRowOffset + x ] = ( float ) ( pixels.get( rowOffset + x ) - offset );
+		}
+
+		final float[] spectrum = new float[ asArraySize( 2 * fftDimensions[ 0 ] * fftDimensions[ 1 ] ) ];
+
+		final ArrayImg< FloatType, FloatArray > paddedImg =
+				ArrayImgs.floats( padded, paddedDimensions );
+		final ArrayImg< ComplexFloatType, FloatArray > spectrumImg =
+				ArrayImgs.complexFloats( spectrum, fftDimensions );
+
+		FFTMethods.realToComplex( paddedImg, spectrumImg, 0, false, service );
+		FFTMethods.complexToComplex( spectrumImg, 1, true, false, service );
+
+		return spectrum;
+	}
+
+	private static float[] inverseTransform(
+			float[] spectrum,
+			long[] paddedDimensions,
+			long[] fftDimensions,
+			ExecutorService service )
+	{
+		final float[] real = new float[ asArraySize( paddedDimensions[ 0 ] * paddedDimensions[ 1 ] ) ];
+
+		final ArrayImg< ComplexFloatType, FloatArray > spectrumImg =
+				ArrayImgs.complexFloats( spectrum, fftDimensions );
+		final ArrayImg< FloatType, FloatArray > realImg =
+				ArrayImgs.floats( real, paddedDimensions );
+
+		FFTMethods.complexToComplex( spectrumImg, 1, false, true, service );
+		FFTMethods.complexToReal( spectrumImg, realImg, 0, true, service );
+
+		return real;
+	}
+
+	/**
+	 * Computes product = overview * conjugate( product ),
+	 * which is the spectrum of the cross-correlation.
+	 */
+	private static void multiplyConjugate(
+			FloatBuffer overviewSpectrum,
+			float[] product,
+			int numThreads,
+			ExecutorService service )
+	{
+		Utils.parallelize( product.length / 2, numThreads, service, ( from, to ) ->
+		{
+			for ( int i = 2 * from; i < 2 * to; i += 2 )
+			{
+				final float a = overviewSpectrum.get( i );
+				final float b = overviewSpectrum.get( i + 1 );
+				final float c = product[ i ];
+				final float d = product[ i + 1 ];
+				product[ i ] = a * c + b * d;
+				product[ i + 1 ] = b * c - a * d;
+			}
+		} );
+	}
+
+	/**
+	 * Summed-area tables of ( overview - offset ) and ( overview - offset )^2,
+	 * with one extra leading row and column of zeros,
+	 * i.e. of size ( overviewWidth + 1 ) x ( overviewHeight + 1 ).
+	 */
+	private double[][] integralImages( double offset, int numThreads, ExecutorService service )
+	{
+		final int stride = overviewWidth + 1;
+		final double[] sum = new double[ asArraySize( ( long ) stride * ( overviewHeight + 1 ) ) ];
+		final double[] sumSquares = new double[ sum.length ];
+
+		// row-wise prefix sums
+		Utils.parallelize( overviewHeight, numThreads, service, ( from, to ) ->
+		{
+			for ( int y = from; y < to; y++ )
+			{
+				double rowSum = 0;
+				double rowSumSquares = 0;
+				final int rowOffset = y * overviewWidth;
+				final int integralRowOffset = ( y + 1 ) * stride;
+				for ( int x = 0; x < overviewWidth; x++ )
+				{
+					final double value = overview.get( rowOffset + x ) - offset;
+					rowSum += value;
+					rowSumSquares += value * value;
+					sum[ integralRowOffset + x + 1 ] = rowSum;
+					sumSquares[ integralRowOffset + x + 1 ] = rowSumSquares;
+				}
+			}
+		} );
+
+		// column-wise accumulation
+		Utils.parallelize( stride, numThreads, service, ( from, to ) ->
+		{
+			for ( int y = 2; y <= overviewHeight; y++ )
+			{
+				final int rowOffset = y * stride;
+				final int previousRowOffset = rowOffset - stride;
+				for ( int x = from; x < to; x++ )
+				{
+					sum[ rowOffset + x ] += sum[ previousRowOffset + x ];
+					sumSquares[ rowOffset + x ] += sumSquares[ previousRowOffset + x ];
+				}
+			}
+		} );
+
+		return new double[][]{ sum, sumSquares };
+	}
+
+	/**
+	 * Normalizes the cross-correlation at all positions, taking the
+	 * sums over the overview windows from the integral images.
+	 */
+	private FloatProcessor normalize(
+			float[] crossCorrelation,
+			int paddedWidth,
+			DoubleBuffer[] integralImages,
+			int templateWidth,
+			int templateHeight,
+			double templateNorm,
+			int numThreads,
+			ExecutorService service )
+	{
+		final int width = overviewWidth - templateWidth + 1;
+		final int height = overviewHeight - templateHeight + 1;
+		final float[] correlation = new float[ asArraySize( ( long ) width * height ) ];
+
+		if ( templateNorm < Double.MIN_NORMAL )
+		{
+			Arrays.fill( correlation, 1.0F );
+			return new FloatProcessor( width, height, correlation );
+		}
+
+		final DoubleBuffer sum = integralImages[ 0 ];
+		final DoubleBuffer sumSquares = integralImages[ 1 ];
+		final int stride = overviewWidth + 1;
+		final double inverseArea = 1.0 / ( ( double ) templateWidth * templateHeight );
+
+		Utils.parallelize( height, numThreads, service, ( from, to ) ->
+		{
+			for ( int y = from; y < to; y++ )
+			{
+				final int top = y * stride;
+				final int bottom = ( y + templateHeight ) * stride;
+
+				for ( int x = 0; x < width; x++ )
+				{
+					final int left = x;
+					final int right = x + templateWidth;
+
+					final double windowSum = sum.get( bottom + right ) - sum.get( bottom + left )
+							- sum.get( top + right ) + sum.get( top + left );
+					final double windowSumSquares = sumSquares.get( bottom + right ) - sumSquares.get( bottom + left )
+							- sumSquares.get( top + right ) + sumSquares.get( top + left );
+
+					correlation[ y * width + x ] = ( float ) normalize(
+							crossCorrelation[ y * paddedWidth + x ],
+							windowSum,
+							windowSumSquares,
+							inverseArea,
+							templateNorm );
+				}
+			}
+		} );
+
+		return new FloatProcessor( width, height, correlation );
+	}
+
+	/**
+	 * Computes the correlation at the given positions directly in the spatial
+	 * domain, which for a few positions is much cheaper than transforming the
+	 * whole overview. The cached spectrum and integral images are not needed.
+	 */
+	@Override
+	public FloatProcessor correlate( FloatProcessor template, int[] min, int[] size )
+	{
+		lock.readLock().lock();
+		try
+		{
+			checkNotClosed();
+			return correlateSpatially( template, min, size );
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	private FloatProcessor correlateSpatially( FloatProcessor template, int[] min, int[] size )
+	{
+		final int templateWidth = template.getWidth();
+		final int templateHeight = template.getHeight();
+
+		if ( min[ 0 ] < 0 || min[ 1 ] < 0
+				|| min[ 0 ] + size[ 0 ] + templateWidth - 1 > overviewWidth
+				|| min[ 1 ] + size[ 1 ] + templateHeight - 1 > overviewHeight )
+			throw new IllegalArgumentException( "Positions "
+					+ min[ 0 ] + ", " + min[ 1 ] + " of size " + size[ 0 ] + " x " + size[ 1 ]
+					+ " exceed the overview (" + overviewWidth + " x " + overviewHeight + ")." );
+
+		final float[] templatePixels = ( float[] ) template.getPixels();
+		final double templateMean = mean( templatePixels );
+		final double templateNorm = norm( templatePixels, templateMean );
+		final double inverseArea = 1.0 / ( ( double ) templateWidth * templateHeight );
+
+		final float[] correlation = new float[ size[ 0 ] * size[ 1 ] ];
+
+		if ( templateNorm < Double.MIN_NORMAL )
+		{
+			Arrays.fill( correlation, 1.0F );
+			return new FloatProcessor( size[ 0 ], size[ 1 ], correlation );
+		}
+
+		for ( int y = 0; y < size[ 1 ]; y++ )
+		{
+			for ( int x = 0; x < size[ 0 ]; x++ )
+			{
+				double crossCorrelation = 0;
+				double windowSum = 0;
+				double windowSumSquares = 0;
+
+				for ( int j = 0; j < templateHeight; j++ )
+				{
+					final int overviewRowOffset = ( min[ 1 ] + y + j ) * overviewWidth + min[ 0 ] + x;
+					final int templateRowOffset = j * templateWidth;
+					for ( int i = 0; i < templateWidth; i++ )
+					{
+						final double value = overview.get( overviewRowOffset + i ) - overviewMean;
+						crossCorrelation += value * ( templatePixels[ templateRowOffset + i ] - templateMean );
+						windowSum += value;
+						windowSumSquares += value * value;
+					}
+				}
+
+				correlation[ y * size[ 0 ] + x ] = ( float ) normalize(
+						crossCorrelation,
+						windowSum,
+						windowSumSquares,
+						inverseArea,
+						templateNorm );
+			}
+		}
+
+		return new FloatProcessor( size[ 0 ], size[ 1 ], correlation );
+	}
+
+	/**
+	 * @return the cross-correlation divided by the product of the template norm and
+	 * the norm of the zero-mean overview window, following OpenCV's handling
+	 * of (nearly) constant windows
+	 */
+	private static double normalize(
+			double crossCorrelation,
+			double windowSum,
+			double windowSumSquares,
+			double inverseArea,
+			double templateNorm )
+	{
+		final double variance = Math.max( windowSumSquares - windowSum * windowSum * inverseArea, 0 );
+
+		double denominator = 0;
+		if ( variance > Math.min( 0.5, EPSILON * windowSumSquares ) )
+			denominator = Math.sqrt( variance ) * templateNorm;
+
+		if ( Math.abs( crossCorrelation ) < denominator )
+			return crossCorrelation / denominator;
+		else if ( Math.abs( crossCorrelation ) < denominator * 1.125 )
+			return crossCorrelation > 0 ? 1 : -1;
+		else
+			return 0;
+	}
+
+	private static double mean( float[] pixels )
+	{
+		double sum = 0;
+		for ( float pixel : pixels )
+			sum += pixel;
+		return sum / pixels.length;
+	}
+
+	private static double norm( float[] pixels, double mean )
+	{
+		double sumSquares = 0;
+		for ( float pixel : pixels )
+			sumSquares += ( pixel - mean ) * ( pixel - mean );
+		return Math.sqrt( sumSquares );
+	}
+
+	private static int asArraySize( long size )
+	{
+		if ( size > Integer.MAX_VALUE - 8 )
+			throw new IllegalArgumentException(
+					"Image too large for correlation: " + size + " elements; use tiled matching." );
+		return ( int ) size;
+	}
+
+	/**
+	 * Runs the tasks, e.g. of FFTMethods, directly in the submitting thread.
+	 */
+	private static class CallingThreadExecutorService extends AbstractExecutorService
+	{
+		@Override
+		public void execute( Runnable command )
+		{
+			command.run();
+		}
+
+		@Override
+		public void shutdown()
+		{
+		}
+
+		@Override
+		public List< Runnable > shutdownNow()
+		{
+			return Collections.emptyList();
+		}
+
+		@Override
+		public boolean isShutdown()
+		{
+			return false;
+		}
+
+		@Override
+		public boolean isTerminated()
+		{
+			return false;
+		}
+
+		@Override
+		public boolean awaitTermination( long timeout, TimeUnit unit )
+		{
+			return false;
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package de.embl.cba.templatematching.correlate;
+
+import de.embl.cba.templatematching.Utils;
+import de.embl.cba.templatematching.match.TemplateMatchingPlugin;
+import ij.process.FloatProcessor;
+
+import static de.embl.cba.templatematching.match.TemplateMatcherTranslation2D.NORMALIZED_CORRELATION;
+import static org.bytedeco.javacpp.opencv_core.IplImage;
+import static org.bytedeco.javacpp.opencv_core.cvReleaseImage;
+
+/**
+ * Correlation with OpenCV's cvMatchTemplate.
+ *
+ * The float pixels of the overview are copied once into native memory,
+ * when the correlator is created, and are reused for all templates,
+ * until the correlator is closed.
+ */
+public class OpenCvTemplateCorrelator implements TemplateCorrelator
+{
+	private final FloatProcessor overviewProcessor;
+	private IplImage overview;
+
+	public OpenCvTemplateCorrelator( FloatProcessor overview )
+	{
+		this.overviewProcessor = overview;
+		this.overview = TemplateMatchingPlugin.asIplImage( overview );
+	}
+
+	@Override
+	public FloatProcessor correlate( FloatProcessor template )
+	{
+		final IplImage iplTemplate = TemplateMatchingPlugin.asIplImage( template );
+
+		try
+		{
+			return TemplateMatchingPlugin.matchTemplate( getOverview(), iplTemplate, NORMALIZED_CORRELATION );
+		}
+		finally
+		{
+			cvReleaseImage( iplTemplate );
+		}
+	}
+
+	/**
+	 * Correlates the template with the overview window covering the positions only.
+	 */
+	@Override
+	public FloatProcessor correlate( FloatProcessor template, int[] min, int[] size )
+	{
+		getOverview(); // not closed
+
+		final FloatProcessor window = Utils.crop( overviewProcessor, min, new int[]{
+				size[ 0 ] + template.getWidth() - 1,
+				size[ 1 ] + template.getHeight() - 1 } );
+
+		final IplImage iplWindow = TemplateMatchingPlugin.asIplImage( window );
+		final IplImage iplTemplate = TemplateMatchingPlugin.asIplImage( template );
+
+		try
+		{
+			return TemplateMatchingPlugin.matchTemplate( iplWindow, iplTemplate, NORMALIZED_CORRELATION );
+		}
+		finally
+		{
+			cvReleaseImage( iplTemplate );
+			cvReleaseImage( iplWindow );
+		}
+	}
+
+	private synchronized IplImage getOverview()
+	{
+		if ( overview == null )
+			throw new IllegalStateException( "Correlator has been closed." );
+
+		return overview;
+	}
+
+	@Override
+	public synchronized void close()
+	{
+		if ( overview != null )
+		{
+			cvReleaseImage( overview );
+			overview = null;
+		}
+	}
+}
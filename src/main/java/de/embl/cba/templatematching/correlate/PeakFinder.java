@@ -0,0 +1,330 @@
+package de.embl.cba.templatematching.correlate;
+
+import de.embl.cba.templatematching.Utils;
+import ij.process.FloatProcessor;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.function.IntConsumer;
+
+/**
+ * Finds peaks in correlation images, reading the float[] of the FloatProcessor
+ * directly and splitting the rows across threads.
+ *
+ * The highest peaks are found in one pass: each thread collects the highest local
+ * maxima (3 x 3 neighbourhood) of its rows in a bounded heap, and the merged
+ * candidates are non-maximum suppressed, greedily accepting candidates which are
+ * more than the exclusion radius away (in x or y) from all higher accepted peaks.
+ * Ties are broken by the lower pixel index, such that results do not depend
+ * on the number of threads.
+ */
+public class PeakFinder
+{
+	public static final int MIN_ROWS_PER_THREAD = 64;
+
+	private final int numThreads;
+	private final ExecutorService service;
+
+	public static class Peak
+	{
+		public final int x;
+		public final int y;
+		public final float value;
+
+		public Peak( int x, int y, float value )
+		{
+			this.x = x;
+			this.y = y;
+			this.value = value;
+		}
+
+		public int[] position()
+		{
+			return new int[]{ x, y };
+		}
+	}
+
+	/**
+	 * Finds peaks in the calling thread.
+	 */
+	public PeakFinder()
+	{
+		this( 1, null );
+	}
+
+	/**
+	 * @param numThreads
+	 * @param service runs the rows of numThreads - 1 threads, the calling thread takes part;
+	 *                may be shared, see Utils.parallelize
+	 */
+	public PeakFinder( int numThreads, ExecutorService service )
+	{
+		this.numThreads = service == null ? 1 : Math.max( 1, numThreads );
+		this.service = service;
+	}
+
+	/**
+	 * @param processor
+	 * @return the position and value of the maximum; NaN values are ignored
+	 */
+	public Peak findMaximum( FloatProcessor processor )
+	{
+		final float[] pixels = ( float[] ) processor.getPixels();
+		final int width = processor.getWidth();
+		final int height = processor.getHeight();
+
+		final int numChunks = getNumThreads( height );
+		final float[] maxValues = new float[ numChunks ];
+		final int[] maxIndices = new int[ numChunks ];
+		final int rowsPerChunk = ( height + numChunks - 1 ) / numChunks;
+
+		run( numChunks, chunk ->
+		{
+			float max = Float.NEGATIVE_INFINITY;
+			int maxIndex = -1;
+			for ( int i = chunk * rowsPerChunk * width,
+				  end = Math.min( height, ( chunk + 1 ) * rowsPerChunk ) * width; i < end; i++ )
+			{
+				if ( pixels[ i ] > max || maxIndex == -1 && pixels[ i ] == max )
+				{
+					max = pixels[ i ];
+					maxIndex = i;
+				}
+			}
+			maxValues[ chunk ] = max;
+			maxIndices[ chunk ] = maxIndex;
+		} );
+
+		int maxIndex = -1;
+		float max = Float.NEGATIVE_INFINITY;
+		for ( int chunk = 0; chunk < numChunks; chunk++ )
+		{
+			if ( maxIndices[ chunk ] != -1 && ( maxIndex == -1 || maxValues[ chunk ] > max ) )
+			{
+				max = maxValues[ chunk ];
+				maxIndex = maxIndices[ chunk ];
+			}
+		}
+
+		if ( maxIndex == -1 ) return new Peak( 0, 0, Float.NaN );
+
+		return new Peak( maxIndex % width, maxIndex / width, max );
+	}
+
+	/**
+	 * @param processor
+	 * @param numPeaks
+	 * @param exclusionRadius minimal distance (in x or y) between reported peaks
+	 * @return up to numPeaks local maxima, sorted by decreasing value
+	 */
+	public ArrayList< Peak > findPeaks( FloatProcessor processor, int numPeaks, int exclusionRadius )
+	{
+		final float[] pixels = ( float[] ) processor.getPixels();
+		final int width = processor.getWidth();
+		final int height = processor.getHeight();
+
+		final int numChunks = getNumThreads( height );
+		final int rowsPerChunk = ( height + numChunks - 1 ) / numChunks;
+
+		// candidates may be suppressed, thus collect more than numPeaks,
+		// and collect even more if that was not enough.
+		int capacity = Math.max( 16, 8 * numPeaks );
+		while ( true )
+		{
+			final Candidates[] candidates = new Candidates[ numChunks ];
+			final int chunkCapacity = capacity;
+
+			run( numChunks, chunk ->
+			{
+				candidates[ chunk ] = new Candidates( chunkCapacity );
+				final int to = Math.min( height, ( chunk + 1 ) * rowsPerChunk );
+				for ( int y = chunk * rowsPerChunk; y < to; y++ )
+					collectLocalMaxima( pixels, width, height, y, candidates[ chunk ] );
+			} );
+
+			// as long as no heap is full, no local maximum was dropped
+			final Candidates merged = new Candidates( capacity );
+			boolean isComplete = true;
+			int numCandidates = 0;
+			for ( Candidates chunkCandidates : candidates )
+			{
+				isComplete &= chunkCandidates.size < capacity;
+				numCandidates += chunkCandidates.size;
+				for ( int i = 0; i < chunkCandidates.size; i++ )
+					merged.offer( chunkCandidates.values[ i ], chunkCandidates.indices[ i ] );
+			}
+			isComplete &= numCandidates < capacity;
+
+			final ArrayList< Peak > peaks = suppress( merged, width, numPeaks, exclusionRadius );
+
+			if ( peaks.size() == numPeaks || isComplete )
+				return peaks;
+
+			capacity *= 4;
+		}
+	}
+
+	private int getNumThreads( int height )
+	{
+		return Math.max( 1, Math.min( numThreads, height / MIN_ROWS_PER_THREAD ) );
+	}
+
+	private void run( int numChunks, IntConsumer chunk )
+	{
+		if ( numChunks == 1 )
+		{
+			chunk.accept( 0 );
+			return;
+		}
+
+		Utils.parallelize( numChunks, numChunks, service, ( from, to ) ->
+		{
+			for ( int i = from; i < to; i++ )
+				chunk.accept( i );
+		} );
+	}
+
+	private static void collectLocalMaxima( float[] pixels, int width, int height, int y, Candidates candidates )
+	{
+		final int yMin = Math.max( 0, y - 1 );
+		final int yMax = Math.min( height - 1, y + 1 );
+
+		for ( int x = 0; x < width; x++ )
+		{
+			final int index = y * width + x;
+			final float value = pixels[ index ];
+
+			if ( value != value ) continue; // NaN
+
+			if ( ! candidates.isCandidate( value, index ) ) continue;
+
+			final int xMin = Math.max( 0, x - 1 );
+			final int xMax = Math.min( width - 1, x + 1 );
+
+			boolean isMaximum = true;
+			for ( int j = yMin; j <= yMax && isMaximum; j++ )
+				for ( int i = xMin; i <= xMax; i++ )
+					if ( pixels[ j * width + i ] > value )
+					{
+						isMaximum = false;
+						break;
+					}
+
+			if ( isMaximum )
+				candidates.offer( value, index );
+		}
+	}
+
+	private static ArrayList< Peak > suppress( Candidates candidates, int width, int numPeaks, int exclusionRadius )
+	{
+		final int size = candidates.size;
+		final float[] values = candidates.values;
+		final int[] indices = candidates.indices;
+
+		// heap sort: repeatedly move the lowest candidate to the end, resulting in decreasing order
+		for ( int end = size - 1; end > 0; end-- )
+		{
+			candidates.swap( 0, end );
+			candidates.size = end;
+			candidates.siftDown( 0 );
+		}
+
+		final ArrayList< Peak > peaks = new ArrayList<>();
+		for ( int i = 0; i < size && peaks.size() < numPeaks; i++ )
+		{
+			final int x = indices[ i ] % width;
+			final int y = indices[ i ] / width;
+
+			boolean isSuppressed = false;
+			for ( Peak peak : peaks )
+				if ( Math.abs( peak.x - x ) <= exclusionRadius && Math.abs( peak.y - y ) <= exclusionRadius )
+				{
+					isSuppressed = true;
+					break;
+				}
+
+			if ( ! isSuppressed )
+				peaks.add( new Peak( x, y, values[ i ] ) );
+		}
+
+		return peaks;
+	}
+
+	/**
+	 * Bounded min-heap of the highest values offered so far.
+	 */
+	private static class Candidates
+	{
+		final float[] values;
+		final int[] indices;
+		int size;
+
+		Candidates( int capacity )
+		{
+			values = new float[ capacity ];
+			indices = new int[ capacity ];
+		}
+
+		boolean isCandidate( float value, int index )
+		{
+			return size < values.length || isHigher( value, index, values[ 0 ], indices[ 0 ] );
+		}
+
+		void offer( float value, int index )
+		{
+			if ( size < values.length )
+			{
+				values[ size ] = value;
+				indices[ size ] = index;
+				siftUp( size++ );
+			}
+			else if ( isHigher( value, index, values[ 0 ], indices[ 0 ] ) )
+			{
+				values[ 0 ] = value;
+				indices[ 0 ] = index;
+				siftDown( 0 );
+			}
+		}
+
+		static boolean isHigher( float value, int index, float otherValue, int otherIndex )
+		{
+			return value > otherValue || value == otherValue && index < otherIndex;
+		}
+
+		void siftUp( int i )
+		{
+			while ( i > 0 )
+			{
+				final int parent = ( i - 1 ) / 2;
+				if ( ! isHigher( values[ parent ], indices[ parent ], values[ i ], indices[ i ] ) ) break;
+				swap( i, parent );
+				i = parent;
+			}
+		}
+
+		void siftDown( int i )
+		{
+			while ( true )
+			{
+				int lowest = i;
+				for ( int child = 2 * i + 1; child <= 2 * i + 2 && child < size; child++ )
+					if ( isHigher( values[ lowest ], indices[ lowest ], values[ child ], indices[ child ] ) )
+						lowest = child;
+
+				if ( lowest == i ) break;
+				swap( i, lowest );
+				i = lowest;
+			}
+		}
+
+		void swap( int i, int j )
+		{
+			final float value = values[ i ];
+			values[ i ] = values[ j ];
+			values[ j ] = value;
+			final int index = indices[ i ];
+			indices[ i ] = indices[ j ];
+			indices[ j ] = index;
+		}
+	}
+}
@@ -0,0 +1,234 @@
+package de.embl.cba.templatematching.correlate;
+
+import de.embl.cba.templatematching.Utils;
+import ij.process.FloatProcessor;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Coarse-to-fine search for the best match of a template within an overview.
+ *
+ * Overview and template are binned by factors of 2 into an image pyramid.
+ * At the coarsest level the template is correlated with the whole overview and
+ * the best candidate peaks are kept. At each finer level, only small windows
+ * around the (up-scaled) candidate positions are correlated, until the
+ * original resolution is reached.
+ */
+public class PyramidTemplateSearch implements AutoCloseable
+{
+	public static final int MIN_TEMPLATE_SIZE = 8;
+	public static final int MARGIN = 4;
+
+	private final ArrayList< FloatProcessor > overviewLevels;
+	private final Map< Integer, TemplateCorrelator > correlators;
+	private final int numCandidates;
+	private final String engine;
+	private final int numThreads;
+	private final ExecutorService service;
+	private final PeakFinder peakFinder;
+
+	public static class Match
+	{
+		public final FloatProcessor correlation;
+		public final int[] offset; // of the correlation within the full correlation
+		public final int[] position; // within the correlation
+		public final double score;
+
+		public Match( FloatProcessor correlation, int[] offset, int[] position )
+		{
+			this.correlation = correlation;
+			this.offset = offset;
+			this.position = position;
+			this.score = correlation.getf( position[ 0 ], position[ 1 ] );
+		}
+	}
+
+	public PyramidTemplateSearch(
+			FloatProcessor overview,
+			int numLevels,
+			int numCandidates,
+			String engine,
+			int numThreads )
+	{
+		this( overview, numLevels, numCandidates, engine, numThreads, null );
+	}
+
+	/**
+	 * @param service computes the correlations and finds the peaks, see Correlators and PeakFinder;
+	 *                may be shared; if null, each correlator uses an own pool
+	 */
+	public PyramidTemplateSearch(
+			FloatProcessor overview,
+			int numLevels,
+			int numCandidates,
+			String engine,
+			int numThreads,
+			ExecutorService service )
+	{
+		this.numCandidates = Math.max( 1, numCandidates );
+		this.engine = engine;
+		this.numThreads = numThreads;
+		this.service = service;
+		this.correlators = new HashMap<>();
+		this.peakFinder = new PeakFinder( numThreads, service );
+
+		overviewLevels = new ArrayList<>();
+		overviewLevels.add( overview );
+		for ( int level = 1; level <= numLevels; level++ )
+		{
+			final FloatProcessor finer = overviewLevels.get( level - 1 );
+			if ( finer.getWidth() < 2 * MIN_TEMPLATE_SIZE || finer.getHeight() < 2 * MIN_TEMPLATE_SIZE )
+				break;
+			overviewLevels.add( binTwice( finer ) );
+		}
+	}
+
+	public Match search( FloatProcessor template )
+	{
+		return searchCandidates( template ).get( 0 );
+	}
+
+	public List< Match > searchCandidates( FloatProcessor template )
+	{
+		return searchCandidates( template, false );
+	}
+
+	/**
+	 * @param template
+	 * @param isInCallingThread if true, the coarse correlation is computed in the calling thread,
+	 *                          see {@link TemplateCorrelator#correlateInCallingThread(FloatProcessor)}
+	 * @return the candidates refined at the original resolution, sorted by decreasing score
+	 */
+	public List< Match > searchCandidates( FloatProcessor template, boolean isInCallingThread )
+	{
+		final ArrayList< FloatProcessor > templateLevels = new ArrayList<>();
+		templateLevels.add( template );
+		for ( int level = 1; level < overviewLevels.size(); level++ )
+		{
+			final FloatProcessor finer = templateLevels.get( level - 1 );
+			if ( finer.getWidth() < 2 * MIN_TEMPLATE_SIZE || finer.getHeight() < 2 * MIN_TEMPLATE_SIZE )
+				break;
+			templateLevels.add( binTwice( finer ) );
+		}
+
+		final int coarsestLevel = getCoarsestLevel( templateLevels );
+
+		Utils.log( "Pyramid search: correlating at binning " + ( 1 << coarsestLevel ) + "..." );
+		final TemplateCorrelator coarseCorrelator = getCorrelator( coarsestLevel );
+		final FloatProcessor coarseCorrelation = isInCallingThread ?
+				coarseCorrelator.correlateInCallingThread( templateLevels.get( coarsestLevel ) ) :
+				coarseCorrelator.correlate( templateLevels.get( coarsestLevel ) );
+
+		final FloatProcessor coarseTemplate = templateLevels.get( coarsestLevel );
+		final int exclusionRadius = Math.max( 1,
+				Math.min( coarseTemplate.getWidth(), coarseTemplate.getHeight() ) / 2 );
+
+		List< Match > candidates = new ArrayList<>();
+		for ( PeakFinder.Peak peak : peakFinder.findPeaks( coarseCorrelation, numCandidates, exclusionRadius ) )
+			candidates.add( new Match( coarseCorrelation, new int[]{ 0, 0 }, peak.position() ) );
+
+		for ( int level = coarsestLevel - 1; level >= 0; level-- )
+		{
+			final ArrayList< Match > refined = new ArrayList<>();
+			for ( Match candidate : candidates )
+				refined.add( refine( candidate, level, templateLevels.get( level ) ) );
+
+			refined.sort( Comparator.comparingDouble( ( Match match ) -> match.score ).reversed() );
+			candidates = refined.subList( 0, Math.min( numCandidates, refined.size() ) );
+		}
+
+		return candidates;
+	}
+
+	@Override
+	public synchronized void close()
+	{
+		for ( TemplateCorrelator correlator : correlators.values() )
+			correlator.close();
+		correlators.clear();
+	}
+
+	private int getCoarsestLevel( ArrayList< FloatProcessor > templateLevels )
+	{
+		int coarsestLevel = 0;
+		for ( int level = 1; level < templateLevels.size(); level++ )
+		{
+			final FloatProcessor template = templateLevels.get( level );
+			final FloatProcessor overview = overviewLevels.get( level );
+
+			if ( template.getWidth() < MIN_TEMPLATE_SIZE || template.getHeight() < MIN_TEMPLATE_SIZE )
+				break;
+
+			if ( template.getWidth() > overview.getWidth() || template.getHeight() > overview.getHeight() )
+				break;
+
+			coarsestLevel = level;
+		}
+		return coarsestLevel;
+	}
+
+	private synchronized TemplateCorrelator getCorrelator( int level )
+	{
+		if ( ! correlators.containsKey( level ) )
+			correlators.put( level, Correlators.create( engine, overviewLevels.get( level ), numThreads, service, false ) );
+
+		return correlators.get( level );
+	}
+
+	/**
+	 * Correlates the template at the positions within a small window around the
+	 * position of the candidate, up-scaled to the given (finer) level, reusing
+	 * the correlator of that level.
+	 */
+	private Match refine( Match candidate, int level, FloatProcessor template )
+	{
+		final FloatProcessor overview = overviewLevels.get( level );
+		final int[] min = new int[ 2 ];
+		final int[] size = new int[ 2 ];
+		final int[] overviewSize = { overview.getWidth(), overview.getHeight() };
+		final int[] templateSize = { template.getWidth(), template.getHeight() };
+
+		for ( int d = 0; d < 2; d++ )
+		{
+			final int center = 2 * ( candidate.offset[ d ] + candidate.position[ d ] );
+			final int maxPosition = Math.max( 0, overviewSize[ d ] - templateSize[ d ] );
+			min[ d ] = Math.min( Math.max( 0, center - MARGIN ), maxPosition );
+			final int max = Math.min( Math.max( 0, center + MARGIN ), maxPosition );
+			size[ d ] = max - min[ d ] + 1;
+		}
+
+		final FloatProcessor correlation = getCorrelator( level ).correlate( template, min, size );
+
+		return new Match( correlation, min, peakFinder.findMaximum( correlation ).position() );
+	}
+
+	/**
+	 * Averages blocks of 2 x 2 pixels; an odd last row or column is dropped.
+	 */
+	private static FloatProcessor binTwice( FloatProcessor processor )
+	{
+		final float[] pixels = ( float[] ) processor.getPixels();
+		final int width = processor.getWidth();
+		final int binnedWidth = Math.max( 1, width / 2 );
+		final int binnedHeight = Math.max( 1, processor.getHeight() / 2 );
+		final float[] binned = new float[ binnedWidth * binnedHeight ];
+
+		for ( int y = 0; y < binnedHeight; y++ )
+		{
+			final int row = 2 * y * width;
+			for ( int x = 0; x < binnedWidth; x++ )
+			{
+				final int i = row + 2 * x;
+				binned[ y * binnedWidth + x ] = 0.25F * (
+						pixels[ i ] + pixels[ i + 1 ] + pixels[ i + width ] + pixels[ i + width + 1 ] );
+			}
+		}
+
+		return new FloatProcessor( binnedWidth, binnedHeight, binned );
+	}
+}
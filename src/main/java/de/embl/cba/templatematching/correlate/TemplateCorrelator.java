@@ -0,0 +1,48 @@
+package de.embl.cba.templatematching.correlate;
+
+import de.embl.cba.templatematching.Utils;
+import ij.process.FloatProcessor;
+
+/**
+ * Computes the normalized correlation coefficient (OpenCV method 5,
+ * CV_TM_CCOEFF_NORMED) of a template against a fixed overview image.
+ *
+ * The returned correlation map has the dimensions
+ * ( overviewWidth - templateWidth + 1 ) x ( overviewHeight - templateHeight + 1 ),
+ * where the value at ( x, y ) corresponds to the template's upper left
+ * corner being placed at ( x, y ) in the overview.
+ *
+ * Correlators may hold native resources, which are released by close().
+ */
+public interface TemplateCorrelator extends AutoCloseable
+{
+	FloatProcessor correlate( FloatProcessor template );
+
+	/**
+	 * As {@link #correlate(FloatProcessor)}, but computed in the calling thread only,
+	 * such that many templates can be correlated concurrently by the tasks of a pool.
+	 */
+	default FloatProcessor correlateInCallingThread( FloatProcessor template )
+	{
+		return correlate( template );
+	}
+
+	/**
+	 * Correlates the template only at the positions min to min + size - 1,
+	 * e.g. to refine candidate positions without correlating the whole overview.
+	 *
+	 * @param template
+	 * @param min of the positions
+	 * @param size of the positions
+	 * @return the correlation at these positions, of the given size
+	 */
+	default FloatProcessor correlate( FloatProcessor template, int[] min, int[] size )
+	{
+		return Utils.crop( correlate( template ), min, size );
+	}
+
+	@Override
+	default void close()
+	{
+	}
+}
@@ -4,9 +4,11 @@ import de.embl.cba.templatematching.Utils;
 import ij.IJ;
 import ij.ImagePlus;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.VirtualStackAdapter;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
 
 public class CalibratedRaiPlus< T extends RealType< T > & NativeType< T > >
 		implements CalibratedRai< T >
@@ -21,7 +23,16 @@ public class CalibratedRaiPlus< T extends RealType< T > & NativeType< T > >
 	{
 		super();
 
-		rai = ImageJFunctions.wrapReal( imp );
+		if ( imp.getStack().isVirtual() && imp.getType() != ImagePlus.COLOR_RGB )
+		{
+			// planes are loaded on demand into a (soft reference) cache
+			rai = ( RandomAccessibleInterval )
+					Views.dropSingletonDimensions( VirtualStackAdapter.wrap( imp ) );
+		}
+		else
+		{
+			rai = ImageJFunctions.wrapReal( imp );
+		}
 
 		final String unit = imp.getCalibration().getUnit();
 
@@ -0,0 +1,41 @@
+package de.embl.cba.templatematching.image;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+import java.util.function.Supplier;
+
+/**
+ * Calibrated image of which the pixels are opened only on the first call of rai(),
+ * e.g. for a result of a previous run, which is only needed again for an export.
+ */
+public class LazyCalibratedRai< T extends RealType< T > & NativeType< T > >
+		implements CalibratedRai< T >
+{
+	private final double[] nanometerCalibration;
+	private final Supplier< RandomAccessibleInterval< T > > opener;
+	private RandomAccessibleInterval< T > rai;
+
+	public LazyCalibratedRai( double[] nanometerCalibration,
+							  Supplier< RandomAccessibleInterval< T > > opener )
+	{
+		this.nanometerCalibration = nanometerCalibration;
+		this.opener = opener;
+	}
+
+	@Override
+	public synchronized RandomAccessibleInterval< T > rai()
+	{
+		if ( rai == null )
+			rai = opener.get();
+
+		return rai;
+	}
+
+	@Override
+	public double[] nanometerCalibration()
+	{
+		return nanometerCalibration;
+	}
+}
@@ -0,0 +1,186 @@
+package de.embl.cba.templatematching.image;
+
+import de.embl.cba.templatematching.Utils;
+import ij.process.FloatProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 2D float image stored off-heap, in a memory-mapped temporary file.
+ *
+ * The file is mapped in blocks of rows, each smaller than 2 GB, such that
+ * the image size is only bounded by disk space. The operating system pages
+ * the data in and out; it neither counts towards the Java heap nor is it
+ * scanned by the garbage collector.
+ *
+ * close() unmaps the file and deletes it, such that the memory is released
+ * deterministically rather than when the buffers are garbage collected.
+ * Accesses hold a read lock, and close() the write lock, such that accesses
+ * after close() throw an IllegalStateException instead of reading unmapped memory.
+ */
+public class MappedFloatImage implements AutoCloseable
+{
+	public static final long MAX_MAPPING_BYTES = Integer.MAX_VALUE & ~7L;
+
+	private final int width;
+	private final long height;
+	private final int rowsPerMapping;
+	private final File file;
+	private final RandomAccessFile randomAccessFile;
+	private final ArrayList< MappedByteBuffer > mappings;
+	private final ArrayList< FloatBuffer > buffers;
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private boolean isClosed;
+
+	public MappedFloatImage( int width, long height ) throws IOException
+	{
+		this.width = width;
+		this.height = height;
+		this.rowsPerMapping = ( int ) Math.max( 1, MAX_MAPPING_BYTES / ( 4L * width ) );
+
+		file = File.createTempFile( "overview", ".raw" );
+		file.deleteOnExit();
+		randomAccessFile = new RandomAccessFile( file, "rw" );
+		randomAccessFile.setLength( 4L * width * height );
+
+		mappings = new ArrayList<>();
+		buffers = new ArrayList<>();
+		final FileChannel channel = randomAccessFile.getChannel();
+		for ( long row = 0; row < height; row += rowsPerMapping )
+		{
+			final long numRows = Math.min( rowsPerMapping, height - row );
+			final MappedByteBuffer mapping =
+					channel.map( FileChannel.MapMode.READ_WRITE, 4L * width * row, 4L * width * numRows );
+			mapping.order( ByteOrder.nativeOrder() );
+			mappings.add( mapping );
+			buffers.add( mapping.asFloatBuffer() );
+		}
+	}
+
+	public int getWidth()
+	{
+		return width;
+	}
+
+	public long getHeight()
+	{
+		return height;
+	}
+
+	/**
+	 * Writes whole rows; may be called concurrently for different rows.
+	 *
+	 * @param y first row
+	 * @param pixels of numRows rows
+	 * @param offset of the first pixel within pixels
+	 * @param numRows
+	 */
+	public void setRows( long y, float[] pixels, int offset, int numRows )
+	{
+		lock.readLock().lock();
+		try
+		{
+			checkNotClosed();
+
+			for ( int row = 0; row < numRows; row++ )
+			{
+				final FloatBuffer buffer = getRowBuffer( y + row );
+				buffer.put( pixels, offset + row * width, width );
+			}
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Copies a region into a new FloatProcessor; may be called concurrently.
+	 *
+	 * @param min { x, y }
+	 * @param size { width, height }
+	 * @return
+	 */
+	public FloatProcessor getRegion( long[] min, int[] size )
+	{
+		final float[] pixels = new float[ size[ 0 ] * size[ 1 ] ];
+
+		lock.readLock().lock();
+		try
+		{
+			checkNotClosed();
+
+			for ( int row = 0; row < size[ 1 ]; row++ )
+			{
+				final FloatBuffer buffer = getRowBuffer( min[ 1 ] + row );
+				buffer.position( buffer.position() + ( int ) min[ 0 ] );
+				buffer.get( pixels, row * size[ 0 ], size[ 0 ] );
+			}
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+
+		return new FloatProcessor( size[ 0 ], size[ 1 ], pixels );
+	}
+
+	private void checkNotClosed()
+	{
+		if ( isClosed )
+			throw new IllegalStateException( "Image has been closed." );
+	}
+
+	/**
+	 * Must be called with the read lock held.
+	 *
+	 * @return an independent view, positioned at the start of row y
+	 */
+	private FloatBuffer getRowBuffer( long y )
+	{
+		final FloatBuffer buffer = buffers.get( ( int ) ( y / rowsPerMapping ) ).duplicate();
+		buffer.position( ( int ) ( y % rowsPerMapping ) * width );
+		return buffer;
+	}
+
+	@Override
+	public void close()
+	{
+		lock.writeLock().lock();
+		try
+		{
+			if ( isClosed ) return;
+			isClosed = true;
+
+			buffers.clear();
+			for ( MappedByteBuffer mapping : mappings )
+				Utils.freeDirectBuffer( mapping );
+			mappings.clear();
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+
+		try
+		{
+			randomAccessFile.close();
+		}
+		catch ( IOException e )
+		{
+			e.printStackTrace();
+		}
+
+		if ( ! file.delete() )
+			Utils.log( "Could not delete temporary file " + file );
+	}
+}
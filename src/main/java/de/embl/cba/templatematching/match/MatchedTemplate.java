@@ -3,6 +3,7 @@ package de.embl.cba.templatematching.match;
 import de.embl.cba.templatematching.image.CalibratedRai;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
 
 import java.io.File;
 
@@ -10,22 +11,45 @@ public class MatchedTemplate < T extends RealType< T > & NativeType< T > >
 {
 	public final CalibratedRai< T > calibratedRai;
 	public final double[] matchedPositionNanometer; // upper left corner = offset
+	public final long[] sizePixels;
 	public File file;
+	public CalibratedRai< T > processedTemplate; // as used for matching
+	public double score = Double.NaN; // normalized cross-correlation at the matched position
+	public double secondPeakRatio = Double.NaN; // second best (distant) peak / best peak
+	public double peakSharpness = Double.NaN; // drop of the correlation around the peak
+	public boolean isAmbiguous;
+	// found by the rotation and scale searches; diagnostic only, i.e. they are logged,
+	// but not applied to the exported template and its registration
+	public double angleDegrees; // of the overview, at which the template matched
+	public double scale = 1.0; // of the template relative to its nominal calibration
 
 	public MatchedTemplate( CalibratedRai< T > calibratedRai,
 							double[] matchedPositionNanometer )
+	{
+		this( calibratedRai, matchedPositionNanometer, Intervals.dimensionsAsLongArray( calibratedRai.rai() ) );
+	}
+
+	/**
+	 * @param calibratedRai
+	 * @param matchedPositionNanometer
+	 * @param sizePixels of the image, such that it needs not be opened, see {@link de.embl.cba.templatematching.image.LazyCalibratedRai}
+	 */
+	public MatchedTemplate( CalibratedRai< T > calibratedRai,
+							double[] matchedPositionNanometer,
+							long[] sizePixels )
 	{
 		this.calibratedRai = calibratedRai;
 		this.matchedPositionNanometer = matchedPositionNanometer;
+		this.sizePixels = sizePixels;
 	}
 
 	public double[] getImageSizeNanometer()
 	{
-		final int numDimensions = calibratedRai.rai().numDimensions();
+		final int numDimensions = sizePixels.length;
 
 		double[] imageSizeNanometer = new double[ numDimensions ];
 		for ( int d = 0; d < numDimensions; d++ )
-			imageSizeNanometer[ d ] = calibratedRai.rai().dimension( d )
+			imageSizeNanometer[ d ] = sizePixels[ d ]
 					* calibratedRai.nanometerCalibration()[ d ];
 
 		return imageSizeNanometer;
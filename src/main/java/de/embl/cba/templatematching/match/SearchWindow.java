@@ -0,0 +1,120 @@
+package de.embl.cba.templatematching.match;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.embl.cba.templatematching.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Region of the overview image within which a template is expected to lie completely.
+ *
+ * Coordinates are in nanometer, in the coordinate system of the (rotated)
+ * overview that is used for matching, i.e. the same coordinate system as
+ * {@link MatchedTemplate#matchedPositionNanometer}.
+ */
+public class SearchWindow
+{
+	public final double[] minNanometer;
+	public final double[] maxNanometer;
+
+	public SearchWindow( double[] minNanometer, double[] maxNanometer )
+	{
+		this.minNanometer = minNanometer;
+		this.maxNanometer = maxNanometer;
+	}
+
+	public SearchWindow translate( double[] translationNanometer )
+	{
+		final double[] min = new double[ 2 ];
+		final double[] max = new double[ 2 ];
+
+		for ( int d = 0; d < 2; d++ )
+		{
+			min[ d ] = minNanometer[ d ] + translationNanometer[ d ];
+			max[ d ] = maxNanometer[ d ] + translationNanometer[ d ];
+		}
+
+		return new SearchWindow( min, max );
+	}
+
+	/**
+	 * Reads search windows, keyed by template file name, from a sidecar file.
+	 *
+	 * Supported are CSV files with the columns
+	 * file, minX, minY, maxX, maxY (an optional header line is skipped), and
+	 * JSON files of the form
+	 * { "file": { "min": [ x, y ], "max": [ x, y ] }, ... }.
+	 *
+	 * @param file
+	 * @return the search windows; empty if file is null or could not be read
+	 */
+	public static Map< String, SearchWindow > readSearchWindows( File file )
+	{
+		final Map< String, SearchWindow > searchWindows = new HashMap<>();
+
+		if ( file == null || ! file.exists() ) return searchWindows;
+
+		try
+		{
+			if ( file.getName().toLowerCase().endsWith( ".json" ) )
+				readJson( file, searchWindows );
+			else
+				readCsv( file, searchWindows );
+		}
+		catch ( IOException | RuntimeException e )
+		{
+			Utils.error( "Could not read search windows from " + file + ":\n" + e );
+			e.printStackTrace();
+		}
+
+		Utils.log( "Read " + searchWindows.size() + " search windows from " + file.getName() );
+
+		return searchWindows;
+	}
+
+	private static void readCsv( File file, Map< String, SearchWindow > searchWindows ) throws IOException
+	{
+		for ( String line : Files.readAllLines( file.toPath() ) )
+		{
+			final String[] split = line.split( "[,;\t]" );
+
+			if ( split.length < 5 ) continue;
+
+			try
+			{
+				final double[] values = new double[ 4 ];
+				for ( int i = 0; i < 4; i++ )
+					values[ i ] = Double.parseDouble( split[ i + 1 ].trim() );
+
+				searchWindows.put( split[ 0 ].trim(), new SearchWindow(
+						new double[]{ values[ 0 ], values[ 1 ] },
+						new double[]{ values[ 2 ], values[ 3 ] } ) );
+			}
+			catch ( NumberFormatException e )
+			{
+				// header line
+			}
+		}
+	}
+
+	private static void readJson( File file, Map< String, SearchWindow > searchWindows ) throws IOException
+	{
+		final Map< String, Map< String, double[] > > map = new ObjectMapper().readValue(
+				file, new TypeReference< Map< String, Map< String, double[] > > >() {} );
+
+		for ( Map.Entry< String, Map< String, double[] > > entry : map.entrySet() )
+		{
+			final double[] min = entry.getValue().get( "min" );
+			final double[] max = entry.getValue().get( "max" );
+
+			searchWindows.put( entry.getKey(), new SearchWindow(
+					new double[]{ min[ 0 ], min[ 1 ] },
+					new double[]{ max[ 0 ], max[ 1 ] } ) );
+		}
+	}
+}
@@ -1,76 +1,651 @@
 package de.embl.cba.templatematching.match;
 
+import de.embl.cba.templatematching.correlate.Correlators;
+import de.embl.cba.templatematching.correlate.PeakFinder;
+import de.embl.cba.templatematching.correlate.PyramidTemplateSearch;
+import de.embl.cba.templatematching.correlate.TemplateCorrelator;
 import de.embl.cba.templatematching.image.CalibratedRai;
+import de.embl.cba.templatematching.image.DefaultCalibratedRai;
+import de.embl.cba.templatematching.image.MappedFloatImage;
 import de.embl.cba.templatematching.Utils;
+import de.embl.cba.templatematching.process.OverviewPreparation;
+import de.embl.cba.templatematching.process.Processor;
+import de.embl.cba.templatematching.process.Projection;
+import de.embl.cba.templatematching.process.StreamingProjection;
 import ij.ImagePlus;
 import ij.measure.Calibration;
 import ij.process.FloatProcessor;
+import loci.formats.FormatException;
+import loci.formats.IFormatReader;
 import net.imglib2.Point;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.algorithm.localextrema.RefinedPeak;
 import net.imglib2.algorithm.localextrema.SubpixelLocalization;
+import net.imglib2.converter.Converters;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static de.embl.cba.templatematching.Utils.*;
 import static de.embl.cba.templatematching.process.Processor.*;
 import static de.embl.cba.transforms.utils.Transforms.getCenter;
 
-public class TemplateMatcherTranslation2D< T extends RealType< T > & NativeType< T > >
+public class TemplateMatcherTranslation2D< T extends RealType< T > & NativeType< T > > implements AutoCloseable
 {
 	public static final int CV_TM_SQDIFF = 0;
 	public static final int CORRELATION = 4;
 	public static final int NORMALIZED_CORRELATION = 5;
+	public static final int PEAK_SHARPNESS_RADIUS = 2;
+	public static final long MAX_NUM_PIXELS = Integer.MAX_VALUE - 8;
+	public static final int MAX_NUM_TILED_MATCHES = 4;
 
 	private final CalibratedRai< T > overviewCalibratedRai;
+	private final TemplatesMatchingSettings settings;
+	private final ExecutorService service;
+	private final boolean isServiceOwned;
 	private ImagePlus overviewImagePlus;
-	private CalibratedRai< T > processedTemplate;
+	private TemplateCorrelator correlator;
+	private PyramidTemplateSearch pyramidSearch;
+	private PeakFinder peakFinder;
+	private boolean isTiled;
+	private MappedFloatImage mappedOverview;
+	private final Map< List< Long >, Tile > tiles = new HashMap<>();
 
 	public TemplateMatcherTranslation2D( CalibratedRai< T > overviewCalibratedRai )
+	{
+		this( overviewCalibratedRai, new TemplatesMatchingSettings() );
+	}
+
+	/**
+	 * Uses an own pool of settings.numThreads threads, which is shut down by {@link #close()}.
+	 */
+	public TemplateMatcherTranslation2D(
+			CalibratedRai< T > overviewCalibratedRai,
+			TemplatesMatchingSettings settings )
+	{
+		this( overviewCalibratedRai, settings, null );
+	}
+
+	/**
+	 * @param overviewCalibratedRai
+	 * @param settings
+	 * @param service computes the preparation, projection and peak finding with settings.numThreads
+	 *                threads, see Utils.parallelize; may be shared, e.g. by all matchers of a run,
+	 *                and is not shut down by {@link #close()}; if null, an own pool is used
+	 */
+	public TemplateMatcherTranslation2D(
+			CalibratedRai< T > overviewCalibratedRai,
+			TemplatesMatchingSettings settings,
+			ExecutorService service )
 	{
 		this.overviewCalibratedRai = overviewCalibratedRai;
-		int addNoiseLevel = 5;
-		setOverviewImagePlus( overviewCalibratedRai, addNoiseLevel );
+		this.settings = settings;
+		this.isServiceOwned = service == null;
+		this.service = isServiceOwned ? Executors.newFixedThreadPool( Math.max( 1, settings.numThreads ) ) : service;
+
+		peakFinder = new PeakFinder( settings.numThreads, this.service );
+
+		if ( settings.rotationSearch && settings.scaleSearch )
+			Utils.log( "Rotation and scale search are both enabled, which is not supported; "
+					+ "searching the rotations only, the scale search is skipped." );
+
+		final long numPixels = overviewCalibratedRai.rai().dimension( 0 ) * overviewCalibratedRai.rai().dimension( 1 );
+		isTiled = settings.tiledMatching || settings.offHeapOverview || numPixels > MAX_NUM_PIXELS;
+
+		if ( isTiled )
+		{
+			if ( settings.offHeapOverview && ! settings.tiledMatching )
+				Utils.log( "Off-heap overview requested, which implies tiled matching." );
+
+			Utils.log( "Matching in tiles of " + settings.tileSize + " x " + settings.tileSize + " pixels." );
+
+			if ( settings.offHeapOverview )
+				setMappedOverview();
+
+			if ( settings.numPyramidLevels > 0 )
+				Utils.log( "Pyramid search is not supported for tiled matching; searching exhaustively." );
+
+			return;
+		}
+
+		setOverviewImagePlus( overviewCalibratedRai );
+
+		correlator = Correlators.create(
+				settings.correlationEngine,
+				getPreparedOverview(),
+				settings.numThreads,
+				this.service,
+				false );
+
+		if ( settings.numPyramidLevels > 0 )
+			pyramidSearch = new PyramidTemplateSearch(
+					getPreparedOverview(),
+					settings.numPyramidLevels,
+					settings.numPyramidCandidates,
+					settings.correlationEngine,
+					settings.numThreads,
+					this.service );
 	}
 
+	/**
+	 * Prepares the overview once into off-heap memory, from which the tiles are copied.
+	 * Otherwise, tiles are prepared from the overview on demand, see findMatchesInTiles.
+	 */
+	private void setMappedOverview()
+	{
+		Utils.log( "Preparing overview image off-heap..." );
+
+		try
+		{
+			mappedOverview = new OverviewPreparation(
+					settings.overviewNoiseLevel,
+					settings.overviewNoiseSeed,
+					settings.numThreads,
+					service ).prepareMapped( overviewCalibratedRai.rai(), settings.tileSize );
+		}
+		catch ( IOException e )
+		{
+			Utils.log( "Could not prepare overview off-heap, preparing tiles on demand: " + e );
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Releases the off-heap overview and native correlation resources, and shuts down
+	 * the own thread pool. The matcher must not be used anymore afterwards.
+	 */
+	@Override
+	public void close()
+	{
+		if ( isServiceOwned )
+			service.shutdown();
+
+		if ( mappedOverview != null )
+			mappedOverview.close();
+
+		if ( correlator != null )
+			correlator.close();
+
+		if ( pyramidSearch != null )
+			pyramidSearch.close();
+
+		synchronized ( tiles )
+		{
+			for ( Tile tile : tiles.values() )
+				tile.correlator.close();
+			tiles.clear();
+		}
+	}
+
+	/**
+	 * @return the overview as used for matching; null for tiled matching
+	 */
 	public ImagePlus getOverviewImagePlus()
 	{
 		return overviewImagePlus;
 	}
 
-	public MatchedTemplate match( CalibratedRai< T > template )
+	/**
+	 * @return the prepared overview, as used for matching; its pixels are shared, not copied;
+	 * null for tiled matching
+	 */
+	public FloatProcessor getPreparedOverview()
 	{
-		// sub-sampling first makes projection faster
-		final CalibratedRai< T > subSampled = subSample( template, getSubSamplingXY( template ) );
+		return isTiled ? null : ( FloatProcessor ) overviewImagePlus.getProcessor();
+	}
 
-		CalibratedRai< T > projected = project( subSampled );
+	public MatchedTemplate< T > match( CalibratedRai< T > template )
+	{
+		return match( template, processTemplate( template ) );
+	}
 
-		processedTemplate = scale( projected, getScalingsXY( projected ) );
+	/**
+	 * Brings the template to the pixel spacing of the overview image:
+	 * sub-sampling, average projection along z and scaling.
+	 *
+	 * This does not depend on any state of the matcher and can thus be
+	 * called concurrently for multiple templates.
+	 *
+	 * @param template
+	 * @return the processed (2D) template
+	 */
+	public CalibratedRai< T > processTemplate( CalibratedRai< T > template )
+	{
+		return processTemplate( template, null );
+	}
+
+	/**
+	 * As {@link #processTemplate(CalibratedRai)}, but if the template file is given,
+	 * a 3D template is projected by streaming its z planes from the file,
+	 * which requires {@link #canStream(File)}.
+	 *
+	 * @param template
+	 * @param file the file of the template; may be null
+	 * @return the processed (2D) template
+	 */
+	public CalibratedRai< T > processTemplate( CalibratedRai< T > template, File file )
+	{
+		final CalibratedRai< T > projected = subSampleAndProject( template, file );
+
+		final CalibratedRai< T > processedTemplate = scale( projected, getScalingsXY( projected ) );
 
 		showIntermediateResult( processedTemplate, "processed template" );
 
-		final double[] calibratedPosition = findPositionWithinOverviewImage( processedTemplate.rai() );
+		return processedTemplate;
+	}
+
+	/**
+	 * @param file
+	 * @return true if {@link TemplatesMatchingSettings#streamingProjection} is set and the
+	 * file is a z stack that can be projected by streaming its planes, see StreamingProjection
+	 */
+	public boolean canStream( File file )
+	{
+		if ( ! settings.streamingProjection || Projection.MEDIAN.equals( settings.projectionMode ) )
+			return false;
+
+		try
+		{
+			final IFormatReader reader = StreamingProjection.openReader( file );
+			try
+			{
+				return reader.getSizeZ() > 1 && StreamingProjection.canStream( settings.projectionMode, reader );
+			}
+			finally
+			{
+				reader.close();
+			}
+		}
+		catch ( IOException | FormatException e )
+		{
+			Utils.log( "Could not read " + file + ", it will not be streamed: " + e );
+			return false;
+		}
+	}
+
+	private CalibratedRai< T > subSampleAndProject( CalibratedRai< T > template, File file )
+	{
+		if ( file != null && template.rai().numDimensions() == 3 )
+		{
+			try
+			{
+				final CalibratedRai< FloatType > projected = StreamingProjection.project(
+						file,
+						template.nanometerCalibration(),
+						getSubSamplingXY( template ),
+						settings.projectionMode,
+						settings.projectionNumSlices,
+						Processor.BLOCK_AVERAGE.equals( settings.downsamplingMode ) );
+
+				return convert( projected, Util.getTypeFromInterval( template.rai() ) );
+			}
+			catch ( IOException | FormatException e )
+			{
+				Utils.log( "Streaming projection of " + file + " failed, projecting in memory: " + e );
+			}
+		}
 
-		final MatchedTemplate matched = getMatchedTemplate( template, calibratedPosition );
+		// templates are processed by settings.numTemplateThreads threads at once,
+		// which share settings.numThreads
+		final int numThreads = Math.max( 1, settings.numThreads / Math.max( 1, settings.numTemplateThreads ) );
+
+		// downsampling first makes projection faster
+		final CalibratedRai< T > subSampled = downsample(
+				template, getSubSamplingXY( template ), settings.downsamplingMode, numThreads, service );
+
+		return project(
+				subSampled, settings.projectionMode, settings.projectionNumSlices, settings.medianNumBins, numThreads, service );
+	}
+
+	/**
+	 * @return the float image converted to the pixel type of the template
+	 */
+	private static < T extends RealType< T > & NativeType< T > >
+	CalibratedRai< T > convert( CalibratedRai< FloatType > calibratedRai, T type )
+	{
+		final RandomAccessibleInterval< T > converted = Converters.convert(
+				calibratedRai.rai(),
+				( FloatType input, T output ) -> output.setReal( input.get() ),
+				type.createVariable() );
+
+		return new DefaultCalibratedRai<>( converted, calibratedRai.nanometerCalibration() );
+	}
+
+	public MatchedTemplate< T > match( CalibratedRai< T > template, CalibratedRai< T > processedTemplate )
+	{
+		return match( template, processedTemplate, null );
+	}
+
+	/**
+	 * @param template
+	 * @param processedTemplate
+	 * @param searchWindow region of the overview that contains the template;
+	 *                        null for searching the whole overview
+	 * @return
+	 */
+	public MatchedTemplate< T > match(
+			CalibratedRai< T > template,
+			CalibratedRai< T > processedTemplate,
+			SearchWindow searchWindow )
+	{
+		final FloatProcessor templateProcessor = asFloatProcessor( processedTemplate.rai() );
+
+		if ( settings.rotationSearch )
+			return matchRotations( template, processedTemplate, templateProcessor, searchWindow );
+
+		if ( settings.scaleSearch )
+			return matchScales( template, processedTemplate, templateProcessor, searchWindow );
+
+		final int exclusionRadius = getExclusionRadius( templateProcessor );
+
+		final List< PyramidTemplateSearch.Match > matches =
+				findMatches( templateProcessor, searchWindow, exclusionRadius, false );
+
+		return getMatchedTemplate( template, processedTemplate, matches, exclusionRadius, new double[]{ 0, 0 } );
+	}
+
+	/**
+	 * Searches the angles settings.overviewAngleDegrees +/- settings.rotationSearchRangeDegrees
+	 * by rotating the processed template rather than the overview.
+	 *
+	 * The rotated templates are cropped to the central region that is valid for all angles,
+	 * such that they all have the same size and share the cached overview spectrum.
+	 * The angles are searched concurrently by the tasks of the thread pool, each correlating
+	 * in its own thread, see {@link TemplateCorrelator#correlateInCallingThread(FloatProcessor)}.
+	 * The best angle is refined by fitting a parabola through the scores of its neighbours.
+	 * The matched position is the one of the unrotated template with the same center,
+	 * using the integer origin of the crop, as the crop is taken at whole pixels.
+	 * The found angle is reported only, i.e. logged and kept in {@link MatchedTemplate#angleDegrees},
+	 * but not applied to the exported template and its registration.
+	 */
+	private MatchedTemplate< T > matchRotations(
+			CalibratedRai< T > template,
+			CalibratedRai< T > processedTemplate,
+			FloatProcessor templateProcessor,
+			SearchWindow searchWindow )
+	{
+		final double step = Math.max( 0.01, Math.abs( settings.rotationSearchStepDegrees ) );
+		final int numSteps = ( int ) Math.floor( Math.abs( settings.rotationSearchRangeDegrees ) / step );
+		final double[] angles = new double[ 2 * numSteps + 1 ];
+		for ( int i = 0; i < angles.length; i++ )
+			angles[ i ] = ( i - numSteps ) * step;
+
+		final int[] cropSize = getRotationCropSize( templateProcessor, numSteps * step );
+		final int exclusionRadius = Math.max( 1, Math.min( cropSize[ 0 ], cropSize[ 1 ] ) / 2 );
+
+		Utils.log( "Searching " + angles.length + " template rotations between "
+				+ angles[ 0 ] + " and " + angles[ angles.length - 1 ] + " degrees..." );
+
+		final List< List< PyramidTemplateSearch.Match > > matchesPerAngle = new ArrayList<>();
+		for ( int i = 0; i < angles.length; i++ )
+			matchesPerAngle.add( null );
+
+		Utils.parallelize( angles.length, angles.length, service, ( from, to ) ->
+		{
+			for ( int i = from; i < to; i++ )
+				matchesPerAngle.set( i, findMatches(
+						rotateAndCrop( templateProcessor, angles[ i ], cropSize ),
+						searchWindow,
+						exclusionRadius,
+						true ) );
+		} );
+
+		int bestIndex = 0;
+		for ( int i = 1; i < angles.length; i++ )
+			if ( getScore( matchesPerAngle.get( i ) ) > getScore( matchesPerAngle.get( bestIndex ) ) )
+				bestIndex = i;
+
+		double bestAngle = angles[ bestIndex ];
+		List< PyramidTemplateSearch.Match > bestMatches = matchesPerAngle.get( bestIndex );
+
+		if ( bestIndex > 0 && bestIndex < angles.length - 1 )
+		{
+			final double previous = getScore( matchesPerAngle.get( bestIndex - 1 ) );
+			final double next = getScore( matchesPerAngle.get( bestIndex + 1 ) );
+			final double curvature = previous - 2 * getScore( bestMatches ) + next;
+
+			if ( curvature < 0 )
+			{
+				final double refinedAngle = bestAngle + 0.5 * ( previous - next ) / curvature * step;
+				final List< PyramidTemplateSearch.Match > refinedMatches = findMatches(
+						rotateAndCrop( templateProcessor, refinedAngle, cropSize ),
+						searchWindow,
+						exclusionRadius,
+						false );
+
+				if ( getScore( refinedMatches ) > getScore( bestMatches ) )
+				{
+					bestAngle = refinedAngle;
+					bestMatches = refinedMatches;
+				}
+			}
+		}
+
+		final int[] cropMin = getCenteredCropMin( templateProcessor, cropSize );
+		final double[] pixelOffset = { - cropMin[ 0 ], - cropMin[ 1 ] };
+
+		final MatchedTemplate< T > matched =
+				getMatchedTemplate( template, processedTemplate, bestMatches, exclusionRadius, pixelOffset );
+
+		matched.angleDegrees = settings.overviewAngleDegrees + bestAngle;
+
+		Utils.log( "Best template rotation: " + String.format( "%.2f", bestAngle )
+				+ " degrees, i.e. overview angle " + String.format( "%.2f", matched.angleDegrees ) + " degrees" );
 
 		return matched;
 	}
 
-	public CalibratedRai< T > getProcessedTemplate()
+	/**
+	 * Searches scalings of the processed template within 1 +/- settings.scaleSearchRange,
+	 * in steps of settings.scaleSearchStep, to compensate for inaccurate pixel calibrations.
+	 *
+	 * Starting at the nominal scaling, larger and smaller scalings are searched, each direction
+	 * stopping as soon as the score does not improve anymore. The steps are evaluated concurrently
+	 * by the tasks of the thread pool, in batches of settings.numThreads / 2 steps per direction;
+	 * steps of a batch beyond the first one without improvement are discarded, such that the
+	 * result does not depend on the number of threads. The scaled templates are cropped to the
+	 * central region of the smallest scaling, such that they share the cached overview spectrum.
+	 * If the rotation search is enabled, it takes precedence.
+	 *
+	 * As for the rotation search, the matched position is the one of the nominal template
+	 * with the same center as the scaled template. The found scaling only improves the matched
+	 * position; it is reported in {@link MatchedTemplate#scale}, but not applied to the
+	 * calibration of the exported template.
+	 */
+	private MatchedTemplate< T > matchScales(
+			CalibratedRai< T > template,
+			CalibratedRai< T > processedTemplate,
+			FloatProcessor templateProcessor,
+			SearchWindow searchWindow )
 	{
-		return processedTemplate;
+		final double step = Math.max( 0.001, Math.abs( settings.scaleSearchStep ) );
+		final int numSteps = ( int ) Math.min(
+				Math.floor( Math.abs( settings.scaleSearchRange ) / step + 1E-9 ),
+				Math.floor( 0.5 / step ) );
+
+		final double minScale = 1.0 - numSteps * step;
+		final int[] cropSize = {
+				Math.max( 1, ( int ) Math.round( templateProcessor.getWidth() * minScale ) ),
+				Math.max( 1, ( int ) Math.round( templateProcessor.getHeight() * minScale ) ) };
+		final int exclusionRadius = Math.max( 1, Math.min( cropSize[ 0 ], cropSize[ 1 ] ) / 2 );
+
+		Utils.log( "Searching template scalings between "
+				+ String.format( "%.3f", minScale ) + " and "
+				+ String.format( "%.3f", 1.0 + numSteps * step ) + "..." );
+
+		// indexed by numSteps + signed step; null if not evaluated
+		final List< List< PyramidTemplateSearch.Match > > matchesPerStep = new ArrayList<>();
+		for ( int i = -numSteps; i <= numSteps; i++ )
+			matchesPerStep.add( null );
+
+		matchesPerStep.set( numSteps, findMatches(
+				scaleAndCrop( ( FloatProcessor ) templateProcessor.duplicate(), 1.0, cropSize ), searchWindow, exclusionRadius, false ) );
+
+		final int[] directions = { -1, 1 };
+		final boolean[] isSearching = { true, true };
+		final double[] previousScores = { getScore( matchesPerStep.get( numSteps ) ), getScore( matchesPerStep.get( numSteps ) ) };
+		final int batchSize = Math.max( 1, settings.numThreads / 2 );
+
+		for ( int first = 1; first <= numSteps && ( isSearching[ 0 ] || isSearching[ 1 ] ); first += batchSize )
+		{
+			final int last = Math.min( numSteps, first + batchSize - 1 );
+
+			final List< Integer > batch = new ArrayList<>();
+			for ( int k = 0; k < directions.length; k++ )
+				if ( isSearching[ k ] )
+					for ( int i = first; i <= last; i++ )
+						batch.add( directions[ k ] * i );
+
+			Utils.parallelize( batch.size(), batch.size(), service, ( from, to ) ->
+			{
+				for ( int b = from; b < to; b++ )
+					matchesPerStep.set( numSteps + batch.get( b ), findMatches(
+							scaleAndCrop( ( FloatProcessor ) templateProcessor.duplicate(), 1.0 + batch.get( b ) * step, cropSize ),
+							searchWindow,
+							exclusionRadius,
+							true ) );
+			} );
+
+			for ( int k = 0; k < directions.length; k++ )
+			{
+				if ( ! isSearching[ k ] ) continue;
+
+				for ( int i = first; i <= last; i++ )
+				{
+					final int index = numSteps + directions[ k ] * i;
+
+					if ( ! isSearching[ k ] )
+					{
+						matchesPerStep.set( index, null );
+						continue;
+					}
+
+					final double score = getScore( matchesPerStep.get( index ) );
+					if ( score <= previousScores[ k ] )
+						isSearching[ k ] = false;
+					previousScores[ k ] = score;
+				}
+			}
+		}
+
+		int bestIndex = numSteps;
+		int numEvaluated = 0;
+		for ( int index = 0; index < matchesPerStep.size(); index++ )
+		{
+			if ( matchesPerStep.get( index ) == null ) continue;
+
+			numEvaluated++;
+			if ( getScore( matchesPerStep.get( index ) ) > getScore( matchesPerStep.get( bestIndex ) ) )
+				bestIndex = index;
+		}
+
+		final double scale = 1.0 + ( bestIndex - numSteps ) * step;
+
+		// the crop is centered within the scaled template, which is centered on the nominal template
+		final int[] scaledSize = {
+				( int ) Math.round( templateProcessor.getWidth() * scale ),
+				( int ) Math.round( templateProcessor.getHeight() * scale ) };
+		final int[] cropMin = getCenteredCropMin( new FloatProcessor( scaledSize[ 0 ], scaledSize[ 1 ] ), cropSize );
+		final double[] pixelOffset = {
+				0.5 * ( scaledSize[ 0 ] - templateProcessor.getWidth() ) - cropMin[ 0 ],
+				0.5 * ( scaledSize[ 1 ] - templateProcessor.getHeight() ) - cropMin[ 1 ] };
+
+		final MatchedTemplate< T > matched = getMatchedTemplate(
+				template, processedTemplate, matchesPerStep.get( bestIndex ), exclusionRadius, pixelOffset );
+
+		matched.scale = scale;
+
+		Utils.log( "Best template scaling: " + String.format( "%.3f", scale )
+				+ " (evaluated " + numEvaluated + " scalings)" );
+
+		return matched;
+	}
+
+	private static double getScore( List< PyramidTemplateSearch.Match > matches )
+	{
+		return matches.get( 0 ).score;
+	}
+
+	/**
+	 * @param isInCallingThread if true, the correlation is computed in the calling thread,
+	 *                          e.g. a task of the pool, see {@link #matchRotations}
+	 */
+	private List< PyramidTemplateSearch.Match > findMatches(
+			FloatProcessor template,
+			SearchWindow searchWindow,
+			int exclusionRadius,
+			boolean isInCallingThread )
+	{
+		if ( searchWindow != null )
+			return findMatchesWithinSearchWindow( template, searchWindow, exclusionRadius, isInCallingThread );
+		else if ( isTiled )
+			return findMatchesInTiles( template, getOverview2D(), exclusionRadius, true, isInCallingThread );
+		else if ( pyramidSearch != null )
+			return pyramidSearch.searchCandidates( template, isInCallingThread );
+		else
+			return findMatchesWithinOverviewImage( template, exclusionRadius, isInCallingThread );
+	}
+
+	private static FloatProcessor correlate(
+			TemplateCorrelator correlator,
+			FloatProcessor template,
+			boolean isInCallingThread )
+	{
+		return isInCallingThread ? correlator.correlateInCallingThread( template ) : correlator.correlate( template );
 	}
 
-	private void setOverviewImagePlus( CalibratedRai< T > calibratedRai, int addNoiseLevel )
+	/**
+	 * @param pixelOffset of the template relative to the matched (e.g. rotated and cropped) template
+	 */
+	private MatchedTemplate< T > getMatchedTemplate(
+			CalibratedRai< T > template,
+			CalibratedRai< T > processedTemplate,
+			List< PyramidTemplateSearch.Match > matches,
+			int exclusionRadius,
+			double[] pixelOffset )
 	{
-		asFloatProcessor( calibratedRai.rai(), addNoiseLevel );
+		final PyramidTemplateSearch.Match best = matches.get( 0 );
+
+		Utils.log( "Refining maximum to sub-pixel resolution..." );
+		final double[] refinedPosition = computeRefinedPosition( best.correlation, best.position );
+		for ( int d = 0; d < 2; d++ )
+			refinedPosition[ d ] += best.offset[ d ] + pixelOffset[ d ];
+
+		final MatchedTemplate< T > matched =
+				getMatchedTemplate( template, getCalibratedPosition3D( refinedPosition ) );
 
-		overviewImagePlus = new ImagePlus(
-				"Overview",
-				asFloatProcessor( calibratedRai.rai(), addNoiseLevel ) );
+		matched.processedTemplate = processedTemplate;
+		matched.angleDegrees = settings.overviewAngleDegrees;
+		setMatchQuality( matched, matches, exclusionRadius );
+
+		return matched;
+	}
+
+	private void setOverviewImagePlus( CalibratedRai< T > calibratedRai )
+	{
+		Utils.log( "Preparing overview image..." );
+
+		final FloatProcessor prepared = new OverviewPreparation(
+				settings.overviewNoiseLevel,
+				settings.overviewNoiseSeed,
+				settings.numThreads,
+				service ).prepare( calibratedRai.rai() );
+
+		overviewImagePlus = new ImagePlus( "Overview", prepared );
 
 		final Calibration calibration = overviewImagePlus.getCalibration();
 		calibration.pixelWidth = calibratedRai.nanometerCalibration()[ 0 ];
@@ -79,7 +654,7 @@ public class TemplateMatcherTranslation2D< T extends RealType< T > & NativeType<
 	}
 
 
-	private MatchedTemplate getMatchedTemplate(
+	private MatchedTemplate< T > getMatchedTemplate(
 			CalibratedRai< T > template,
 			double[] positionNanometer )
 	{
@@ -91,7 +666,7 @@ public class TemplateMatcherTranslation2D< T extends RealType< T > & NativeType<
 			positionNanometer[ 2 ] = ( -center[ 2 ] ) * template.nanometerCalibration()[ 2 ];
 		}
 
-		return new MatchedTemplate( template, positionNanometer);
+		return new MatchedTemplate<>( template, positionNanometer );
 	}
 
 	private double[] getCalibratedPosition3D( double[] pixelPosition )
@@ -132,26 +707,319 @@ public class TemplateMatcherTranslation2D< T extends RealType< T > & NativeType<
 		return scalings;
 	}
 
-	private double[] findPositionWithinOverviewImage( RandomAccessibleInterval< T > template )
+	/**
+	 * @return the best match and the second best match (if any) at least exclusionRadius away
+	 */
+	private List< PyramidTemplateSearch.Match > findMatchesWithinOverviewImage(
+			FloatProcessor template,
+			int exclusionRadius,
+			boolean isInCallingThread )
 	{
 		Utils.log( "Computing x-correlation..." );
-		FloatProcessor correlation = TemplateMatchingPlugin.doMatch(
-				overviewImagePlus.getProcessor(),
-				asFloatProcessor( template ),
-				NORMALIZED_CORRELATION );
+		FloatProcessor correlation = correlate( correlator, template, isInCallingThread );
 
 		if ( showIntermediateResults )
 			new ImagePlus( "correlation", correlation ).show();
 
 		Utils.log( "Finding maximum in x-correlation..." );
-		final int[] position = findMaximumPosition( correlation );
+		return findMatches( correlation, new int[]{ 0, 0 }, exclusionRadius );
+	}
 
-		Utils.log( "Refining maximum to sub-pixel resolution..." );
-		final double[] refinedPosition = computeRefinedPosition( correlation, position );
+	private List< PyramidTemplateSearch.Match > findMatchesWithinSearchWindow(
+			FloatProcessor template,
+			SearchWindow searchWindow,
+			int exclusionRadius,
+			boolean isInCallingThread )
+	{
+		final int[] templateSize = { template.getWidth(), template.getHeight() };
+		final RandomAccessibleInterval< T > overview = getOverview2D();
+		final int[] overviewSize = { ( int ) overview.dimension( 0 ), ( int ) overview.dimension( 1 ) };
+		final double[] calibration = overviewCalibratedRai.nanometerCalibration();
 
-		final double[] calibratedPosition = getCalibratedPosition3D( refinedPosition );
+		final int[] min = new int[ 2 ];
+		final int[] size = new int[ 2 ];
+		for ( int d = 0; d < 2; d++ )
+		{
+			int windowMin = ( int ) Math.floor( searchWindow.minNanometer[ d ] / calibration[ d ] );
+			int windowMax = ( int ) Math.ceil( searchWindow.maxNanometer[ d ] / calibration[ d ] );
+			windowMin = Math.max( 0, windowMin );
+			windowMax = Math.min( overviewSize[ d ] - 1, windowMax );
 
-		return calibratedPosition;
+			size[ d ] = Math.max( windowMax - windowMin + 1, templateSize[ d ] );
+			size[ d ] = Math.min( size[ d ], overviewSize[ d ] );
+			min[ d ] = Math.max( 0, Math.min( windowMin, overviewSize[ d ] - size[ d ] ) );
+		}
+
+		Utils.log( "Computing x-correlation within search window at "
+				+ min[ 0 ] + ", " + min[ 1 ] + " of size " + size[ 0 ] + " x " + size[ 1 ] + "..." );
+
+		if ( isTiled )
+		{
+			final long[] windowMin = { overview.min( 0 ) + min[ 0 ], overview.min( 1 ) + min[ 1 ] };
+			final long[] windowMax = { windowMin[ 0 ] + size[ 0 ] - 1, windowMin[ 1 ] + size[ 1 ] - 1 };
+			return findMatchesInTiles(
+					template, Views.interval( overview, windowMin, windowMax ), exclusionRadius, false, isInCallingThread );
+		}
+
+		final FloatProcessor window =
+				crop( getPreparedOverview(), min, size );
+
+		final FloatProcessor correlation;
+		try ( TemplateCorrelator windowCorrelator =
+					  Correlators.create( settings.correlationEngine, window, settings.numThreads, service, false ) )
+		{
+			correlation = correlate( windowCorrelator, template, isInCallingThread );
+		}
+
+		return findMatches( correlation, min, exclusionRadius );
+	}
+
+	private RandomAccessibleInterval< T > getOverview2D()
+	{
+		final RandomAccessibleInterval< T > overview = overviewCalibratedRai.rai();
+
+		if ( overview.numDimensions() == 3 )
+			return Views.hyperSlice( overview, 2, overview.min( 2 ) );
+		else
+			return overview;
+	}
+
+	/**
+	 * Correlates the template with overlapping tiles of the region, which are prepared
+	 * from the (cell-backed) overview on demand, such that the overview may be larger
+	 * than a Java array.
+	 *
+	 * Tiles cover settings.tileSize x settings.tileSize template positions each and
+	 * overlap by the template size minus one, such that every template position is
+	 * correlated exactly once. The peaks of all tiles are merged, keeping the
+	 * MAX_NUM_TILED_MATCHES best.
+	 *
+	 * @param isCacheable if true, up to settings.numCachedTiles tiles are prepared once,
+	 *                    with a margin for larger templates, and reused for the following
+	 *                    templates together with their correlators (and cached spectra)
+	 * @param isInCallingThread see {@link #findMatches(FloatProcessor, SearchWindow, int, boolean)}
+	 */
+	private List< PyramidTemplateSearch.Match > findMatchesInTiles(
+			FloatProcessor template,
+			RandomAccessibleInterval< T > region,
+			int exclusionRadius,
+			boolean isCacheable,
+			boolean isInCallingThread )
+	{
+		final RandomAccessibleInterval< T > overview = getOverview2D();
+		final long[] templateSize = { template.getWidth(), template.getHeight() };
+		final int tileSize = Math.max( 1, settings.tileSize );
+
+		List< PyramidTemplateSearch.Match > matches = new ArrayList<>();
+
+		for ( long y = region.min( 1 ); y + templateSize[ 1 ] - 1 <= region.max( 1 ); y += tileSize )
+		{
+			for ( long x = region.min( 0 ); x + templateSize[ 0 ] - 1 <= region.max( 0 ); x += tileSize )
+			{
+				final long[] min = { x, y };
+				final long[] max = new long[ 2 ];
+				for ( int d = 0; d < 2; d++ )
+					max[ d ] = Math.min( region.max( d ), min[ d ] + tileSize + templateSize[ d ] - 2 );
+
+				Utils.log( "Computing x-correlation in tile at " + x + ", " + y + "..." );
+
+				final Tile tile = getTile( min, max, templateSize, isCacheable );
+
+				FloatProcessor correlation;
+				try
+				{
+					correlation = correlate( tile.correlator, template, isInCallingThread );
+				}
+				finally
+				{
+					if ( ! tile.isCached )
+						tile.correlator.close();
+				}
+
+				// a cached tile may be larger, keep the positions of this tile only
+				final int[] correlationSize = {
+						( int ) ( max[ 0 ] - min[ 0 ] - templateSize[ 0 ] + 2 ),
+						( int ) ( max[ 1 ] - min[ 1 ] - templateSize[ 1 ] + 2 ) };
+				if ( correlation.getWidth() != correlationSize[ 0 ] || correlation.getHeight() != correlationSize[ 1 ] )
+					correlation = crop( correlation, new int[]{ 0, 0 }, correlationSize );
+
+				final int[] offset = { ( int ) ( x - overview.min( 0 ) ), ( int ) ( y - overview.min( 1 ) ) };
+				matches.addAll( findMatches( correlation, offset, exclusionRadius ) );
+
+				matches.sort( Comparator.comparingDouble( ( PyramidTemplateSearch.Match match ) -> match.score ).reversed() );
+				matches = new ArrayList<>( matches.subList( 0, Math.min( MAX_NUM_TILED_MATCHES, matches.size() ) ) );
+			}
+		}
+
+		if ( matches.isEmpty() )
+			throw new IllegalArgumentException( "Template is larger than the overview region." );
+
+		return matches;
+	}
+
+	/**
+	 * @return a cached tile starting at min that extends to at least max, or
+	 * a new tile, which is cached if there is room and the tile is cacheable
+	 */
+	private Tile getTile( long[] min, long[] max, long[] templateSize, boolean isCacheable )
+	{
+		if ( isCacheable )
+		{
+			synchronized ( tiles )
+			{
+				final List< Long > key = Arrays.asList( min[ 0 ], min[ 1 ] );
+				final Tile cached = tiles.get( key );
+
+				if ( cached != null && cached.max[ 0 ] >= max[ 0 ] && cached.max[ 1 ] >= max[ 1 ] )
+					return cached;
+
+				if ( cached == null && tiles.size() < settings.numCachedTiles )
+				{
+					final RandomAccessibleInterval< T > overview = getOverview2D();
+					final long[] paddedMax = new long[ 2 ];
+					for ( int d = 0; d < 2; d++ )
+						paddedMax[ d ] = Math.min( overview.max( d ), max[ d ] + templateSize[ d ] );
+
+					final Tile tile = new Tile( paddedMax, createTileCorrelator( min, paddedMax ), true );
+					tiles.put( key, tile );
+					return tile;
+				}
+			}
+		}
+
+		return new Tile( max, createTileCorrelator( min, max ), false );
+	}
+
+	private TemplateCorrelator createTileCorrelator( long[] min, long[] max )
+	{
+		final RandomAccessibleInterval< T > overview = getOverview2D();
+
+		final FloatProcessor tile = mappedOverview != null ?
+				mappedOverview.getRegion(
+						new long[]{ min[ 0 ] - overview.min( 0 ), min[ 1 ] - overview.min( 1 ) },
+						new int[]{ ( int ) ( max[ 0 ] - min[ 0 ] + 1 ), ( int ) ( max[ 1 ] - min[ 1 ] + 1 ) } ) :
+				new OverviewPreparation(
+						settings.overviewNoiseLevel,
+						settings.overviewNoiseSeed,
+						settings.numThreads,
+						service ).prepare( overview, min, max );
+
+		return Correlators.create(
+				settings.correlationEngine, tile, settings.numThreads, service, settings.offHeapOverview );
+	}
+
+	/**
+	 * A prepared region of the overview, from the min of its key to max.
+	 */
+	private static class Tile
+	{
+		final long[] max;
+		final TemplateCorrelator correlator;
+		final boolean isCached;
+
+		Tile( long[] max, TemplateCorrelator correlator, boolean isCached )
+		{
+			this.max = max;
+			this.correlator = correlator;
+			this.isCached = isCached;
+		}
+	}
+
+	private List< PyramidTemplateSearch.Match > findMatches(
+			FloatProcessor correlation,
+			int[] offset,
+			int exclusionRadius )
+	{
+		final List< PyramidTemplateSearch.Match > matches = new ArrayList<>();
+
+		for ( PeakFinder.Peak peak : peakFinder.findPeaks( correlation, 2, exclusionRadius ) )
+			matches.add( new PyramidTemplateSearch.Match( correlation, offset, peak.position() ) );
+
+		if ( matches.isEmpty() ) // no valid correlation values
+			matches.add( new PyramidTemplateSearch.Match( correlation, offset, new int[]{ 0, 0 } ) );
+
+		return matches;
+	}
+
+	private static int getExclusionRadius( FloatProcessor template )
+	{
+		return Math.max( 1, Math.min( template.getWidth(), template.getHeight() ) / 2 );
+	}
+
+	/**
+	 * Sets the peak normalized cross-correlation, the ratio of the second best peak
+	 * (at least exclusionRadius away) to the best peak, and the peak sharpness,
+	 * i.e. the drop of the correlation from the peak to the mean along a square
+	 * ring of radius PEAK_SHARPNESS_RADIUS pixels around it.
+	 *
+	 * A match is ambiguous if the ratio exceeds settings.ambiguousPeakRatio.
+	 * For the pyramid search, the second best peak is taken from the refined
+	 * candidates only.
+	 */
+	private void setMatchQuality(
+			MatchedTemplate< T > matched,
+			List< PyramidTemplateSearch.Match > matches,
+			int exclusionRadius )
+	{
+		final PyramidTemplateSearch.Match best = matches.get( 0 );
+
+		double secondScore = Double.NaN;
+		for ( PyramidTemplateSearch.Match match : matches.subList( 1, matches.size() ) )
+		{
+			if ( Math.abs( getGlobalPosition( match, 0 ) - getGlobalPosition( best, 0 ) ) > exclusionRadius
+					|| Math.abs( getGlobalPosition( match, 1 ) - getGlobalPosition( best, 1 ) ) > exclusionRadius )
+			{
+				secondScore = match.score;
+				break;
+			}
+		}
+
+		matched.score = best.score;
+		matched.peakSharpness = best.score - getRingMean( best.correlation, best.position, PEAK_SHARPNESS_RADIUS );
+
+		if ( Double.isNaN( secondScore ) )
+			matched.secondPeakRatio = 0;
+		else if ( best.score <= 0 )
+			matched.secondPeakRatio = 1;
+		else
+			matched.secondPeakRatio = Math.max( 0, secondScore / best.score );
+
+		matched.isAmbiguous = matched.secondPeakRatio > settings.ambiguousPeakRatio;
+
+		Utils.log( "Match score: " + String.format( "%.3f", matched.score )
+				+ ", second peak ratio: " + String.format( "%.3f", matched.secondPeakRatio )
+				+ ", peak sharpness: " + String.format( "%.3f", matched.peakSharpness )
+				+ ( matched.isAmbiguous ? " (ambiguous)" : "" ) );
+	}
+
+	private static int getGlobalPosition( PyramidTemplateSearch.Match match, int d )
+	{
+		return match.offset[ d ] + match.position[ d ];
+	}
+
+	private static double getRingMean( FloatProcessor correlation, int[] position, int radius )
+	{
+		final int width = correlation.getWidth();
+		final int height = correlation.getHeight();
+		final float[] pixels = ( float[] ) correlation.getPixels();
+
+		double sum = 0;
+		int count = 0;
+		for ( int y = position[ 1 ] - radius; y <= position[ 1 ] + radius; y++ )
+		{
+			if ( y < 0 || y >= height ) continue;
+
+			final boolean isRingRow = Math.abs( y - position[ 1 ] ) == radius;
+			final int step = isRingRow ? 1 : 2 * radius;
+			for ( int x = position[ 0 ] - radius; x <= position[ 0 ] + radius; x += step )
+			{
+				if ( x < 0 || x >= width ) continue;
+				sum += pixels[ y * width + x ];
+				count++;
+			}
+		}
+
+		return count == 0 ? correlation.getf( position[ 0 ], position[ 1 ] ) : sum / count;
 	}
 
 	private double[] computeRefinedPosition( FloatProcessor correlation, int[] position )
@@ -186,11 +1054,4 @@ public class TemplateMatcherTranslation2D< T extends RealType< T > & NativeType<
 		return refinedPosition;
 	}
 
-	private int[] findMaximumPosition( FloatProcessor processor )
-	{
-		final int[] maxPos = findMax( processor );
-		return maxPos;
-	}
-
-
 }
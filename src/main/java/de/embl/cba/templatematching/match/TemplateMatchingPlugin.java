@@ -1,5 +1,6 @@
 package de.embl.cba.templatematching.match;
 
+import de.embl.cba.templatematching.correlate.PeakFinder;
 import ij.*;
 import ij.process.*;
 import ij.gui.*;
@@ -245,26 +246,16 @@ public class TemplateMatchingPlugin implements PlugIn {
 		int srcH = src.getHeight();
 		int tplW = tpl.getWidth();
 		int tplH = tpl.getHeight();
-		IplImage temp, temp2,res;
+		IplImage temp, temp2;
 		IplImage iplSrc = null;
 		IplImage iplTpl = null;
 
 		switch (src.getBitDepth()) {
 
 			case 32:
-				//convert source imageProcessor into iplImage
-				CvMat srcMat = CvMat.create(srcH, srcW, CV_32FC1);
-				double[] dArr1 = float2DtoDouble1DArray(src.getFloatArray(), srcW, srcH);
-				srcMat.put(0, dArr1, 0, dArr1.length);
-				iplSrc = srcMat.asIplImage();
-				//iplSrc = temp.clone();
-
-				//convert template imageProcessor into iplImage
-				CvMat tplMat = CvMat.create(tplH, tplW, CV_32FC1);
-				double[] dArr2 = float2DtoDouble1DArray(tpl.getFloatArray(), tplW, tplH);
-				tplMat.put(0, dArr2, 0, dArr2.length);
-				iplTpl = tplMat.asIplImage();
-				//iplTpl = temp2.clone();
+				//copy the float pixels directly into native images
+				iplSrc = asIplImage((FloatProcessor) src);
+				iplTpl = asIplImage((FloatProcessor) tpl);
 
 				break;
 			case 16:
@@ -297,29 +288,10 @@ public class TemplateMatchingPlugin implements PlugIn {
 				break;
 		}
 
-		res = cvCreateImage(cvSize(srcW - tplW + 1, srcH - tplH + 1), IPL_DEPTH_32F, 1);
-
-        /*
-        CV_TM_SQDIFF        = 0,
-        CV_TM_SQDIFF_NORMED = 1,
-        CV_TM_CCORR         = 2,
-        CV_TM_CCORR_NORMED  = 3,
-        CV_TM_CCOEFF        = 4,
-        CV_TM_CCOEFF_NORMED = 5;
-         */
-
-		cvMatchTemplate(iplSrc, iplTpl, res, method);
-		FloatBuffer fb = res.getFloatBuffer();
-		float[] f = new float[res.width() * res.height()];
-		fb.get(f, 0, f.length);
-		resultFp = new FloatProcessor(res.width(), res.height(), f, null);
-		cvReleaseImage(res);
+		resultFp = matchTemplate(iplSrc, iplTpl, method);
 
 		switch (src.getBitDepth()) {
 			case 32:
-				iplSrc.release();
-				iplTpl.release();
-				break;
 			case 16:
 				cvReleaseImage(iplSrc);
 				cvReleaseImage(iplTpl);
@@ -335,7 +307,60 @@ public class TemplateMatchingPlugin implements PlugIn {
 		return resultFp;
 	}
 
+	/*
+	 * Copies the pixels of a FloatProcessor into a native 32-bit image,
+	 * row by row, without intermediate arrays.
+	 */
+	public static IplImage asIplImage(FloatProcessor fp) {
+		final int width = fp.getWidth();
+		final int height = fp.getHeight();
+		final float[] pixels = (float[]) fp.getPixels();
+
+		final IplImage image = cvCreateImage(cvSize(width, height), IPL_DEPTH_32F, 1);
+		final FloatBuffer buffer = image.getFloatBuffer();
+		final int rowStep = image.widthStep() / 4;
+		for (int y = 0; y < height; y++) {
+			buffer.position(y * rowStep);
+			buffer.put(pixels, y * width, width);
+		}
+
+		return image;
+	}
+
+	/*
+	 * Runs cvMatchTemplate on 32-bit images and copies the result into a FloatProcessor.
+	 */
+	public static FloatProcessor matchTemplate(IplImage iplSrc, IplImage iplTpl, int method) {
+		IplImage res = cvCreateImage(cvSize(iplSrc.width() - iplTpl.width() + 1, iplSrc.height() - iplTpl.height() + 1), IPL_DEPTH_32F, 1);
+
+        /*
+        CV_TM_SQDIFF        = 0,
+        CV_TM_SQDIFF_NORMED = 1,
+        CV_TM_CCORR         = 2,
+        CV_TM_CCORR_NORMED  = 3,
+        CV_TM_CCOEFF        = 4,
+        CV_TM_CCOEFF_NORMED = 5;
+         */
+
+		cvMatchTemplate(iplSrc, iplTpl, res, method);
+		FloatBuffer fb = res.getFloatBuffer();
+		final int width = res.width();
+		final int height = res.height();
+		final int rowStep = res.widthStep() / 4;
+		float[] f = new float[width * height];
+		for (int y = 0; y < height; y++) {
+			fb.position(y * rowStep);
+			fb.get(f, y * width, width);
+		}
+		cvReleaseImage(res);
+
+		return new FloatProcessor(width, height, f, null);
+	}
+
 	public static int[] findMax(ImageProcessor ip, int sW) {
+		if (sW == 0 && ip instanceof FloatProcessor)
+			return new PeakFinder().findMaximum((FloatProcessor) ip).position();
+
 		int[] coord = new int[2];
 		float max = ip.getPixel(0, 0);
 		int sWh, sWw;
@@ -387,32 +412,6 @@ public class TemplateMatchingPlugin implements PlugIn {
 		return (coord);
 	}
 
-	/*
-	 *  The 2D array from ImageJ is [x][y], while the cvMat is in [y][x]
-	 */
-	private static double[] float2DtoDouble1DArray(float[][] arr2d, int column, int row) {
-
-
-
-//        IJ.log("src.col: " + column);
-//        IJ.log("src.row: "+ row);
-//        IJ.log("arr2d[]: "+ arr2d.length);
-//        IJ.log("arr2d[][]: "+ arr2d[0].length);
-
-
-		double[] arr1d = new double[column * row];
-		for (int y = 0; y < row; y++) {
-			for (int x = 0; x < column; x++) {
-//                IJ.log("convert x:"+x+" y: "+y );
-//                IJ.log("arr1d x*row+y:"+(y*column+x));
-//                IJ.log("arr1d value:"+ arr2d[x][y]);
-				arr1d[y * column + x] = (double) arr2d[x][y];
-			}
-		}
-
-		return arr1d;
-	}
-
 	public void showAbout() {
 		IJ.showMessage("cvMatch Template", "This plugin implements the tempalte match function from\n"
 				+ "the OpenCV library. It will try to find an object (template)\n"
@@ -1,16 +1,20 @@
 package de.embl.cba.templatematching.match;
 
-import de.embl.cba.bdv.utils.io.BdvRaiXYZCTExport;
 import de.embl.cba.templatematching.FileUtils;
 import de.embl.cba.templatematching.ImageIO;
 import de.embl.cba.templatematching.Utils;
 import de.embl.cba.templatematching.image.CalibratedRai;
 import de.embl.cba.templatematching.image.CalibratedRaiPlus;
 import de.embl.cba.templatematching.image.DefaultCalibratedRai;
+import de.embl.cba.templatematching.image.LazyCalibratedRai;
 import de.embl.cba.templatematching.process.Processor;
+import de.embl.cba.templatematching.save.ResultsManifest;
+import de.embl.cba.templatematching.save.ResultsWriter;
 import ij.ImagePlus;
 import ij.gui.*;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.realtransform.Scale3D;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.view.Views;
@@ -18,6 +22,16 @@ import net.imglib2.view.Views;
 import java.awt.*;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 public class TemplatesMatcher< T extends RealType< T > & NativeType< T > >
@@ -26,12 +40,17 @@ public class TemplatesMatcher< T extends RealType< T > & NativeType< T > >
 	private final TemplatesMatchingSettings settings;
 	private ArrayList< File > templateFiles;
 	private int templateIndex;
-	private ArrayList< MatchedTemplate > matchedTemplates;
+	private ArrayList< MatchedTemplate< T > > matchedTemplates;
 	private CalibratedRai< T > subsampledOverviewForMatching;
 	private String highMagId;
 	private String lowMagId;
 	private CalibratedRaiPlus< T > rawOverview;
 	private CalibratedRai rotatedOverviewForExport;
+	private Map< String, SearchWindow > searchWindows;
+	private ResultsWriter< T > resultsWriter;
+	private ResultsManifest manifest;
+	private ExecutorService service;
+	private final TemplateJob endOfStream = new TemplateJob( -1, null );
 
 	public TemplatesMatcher( TemplatesMatchingSettings settings )
 	{
@@ -47,16 +66,67 @@ public class TemplatesMatcher< T extends RealType< T > & NativeType< T > >
 	{
 		if ( ! createTemplateFileList() ) return false;
 
-		openOverview();
+		searchWindows = SearchWindow.readSearchWindows( settings.searchWindowsFile );
 
-		if ( settings.saveResultsAsBdv)
-			exportOverview( rotatedOverviewForExport, rawOverview.is3D, rawOverview.isMultiChannel );
+		if ( settings.outputDirectory != null )
+			manifest = new ResultsManifest( settings );
 
-		matchTemplates( subsampledOverviewForMatching );
+		// the one pool of settings.numThreads threads that computes everything of this run
+		service = Executors.newFixedThreadPool( Math.max( 1, settings.numThreads ) );
+
+		try
+		{
+			openOverview();
+
+			if ( settings.saveResultsAsBdv )
+			{
+				resultsWriter = new ResultsWriter<>( settings, service );
+				exportOverview( resultsWriter );
+			}
+
+			try
+			{
+				matchTemplates( subsampledOverviewForMatching );
+			}
+			finally
+			{
+				if ( resultsWriter != null )
+				{
+					Utils.log( "Waiting for the export to finish..." );
+					resultsWriter.awaitCompletion();
+				}
+
+				if ( manifest != null )
+					ResultsWriter.writeMatchesTable(
+							settings.outputDirectory, manifest.getEntries(), manifest.getSettingsHash() );
+			}
+		}
+		finally
+		{
+			service.shutdown();
+		}
+
+		logAmbiguousMatches();
 
 		return true;
 	}
 
+	private void logAmbiguousMatches()
+	{
+		int numAmbiguous = 0;
+		for ( MatchedTemplate< T > matchedTemplate : matchedTemplates )
+		{
+			if ( ! matchedTemplate.isAmbiguous ) continue;
+
+			Utils.log( "Ambiguous match: " + matchedTemplate.file.getName()
+					+ ", score " + String.format( "%.3f", matchedTemplate.score )
+					+ ", second peak ratio " + String.format( "%.3f", matchedTemplate.secondPeakRatio ) );
+			numAmbiguous++;
+		}
+
+		Utils.log( numAmbiguous + " of " + matchedTemplates.size() + " matches are ambiguous." );
+	}
+
 	// TODO: refactor into separate class!
 	public boolean saveResults()
 	{
@@ -99,45 +169,353 @@ public class TemplatesMatcher< T extends RealType< T > & NativeType< T > >
 
 	}
 
+	/**
+	 * Matches all templates against the overview.
+	 *
+	 * The work is organised as a pipeline of stages connected by bounded queues,
+	 * such that reading, computing and writing overlap:
+	 * <ol>
+	 *     <li>load: one thread opening the template files (Bio-Formats)</li>
+	 *     <li>preprocess: {@link TemplatesMatchingSettings#numTemplateThreads} threads
+	 *     sub-sampling, projecting and scaling the templates</li>
+	 *     <li>match: {@link TemplatesMatchingSettings#numParallelCorrelations} threads
+	 *     correlating the processed templates with the overview</li>
+	 *     <li>commit: the calling thread, adding the results to matchedTemplates,
+	 *     showing them on the overview and exporting them, in the order of
+	 *     the template files</li>
+	 * </ol>
+	 *
+	 * The number of templates in memory is capped by the queue capacities and
+	 * the number of threads, independent of the number of template files.
+	 *
+	 * @param overview
+	 */
 	private void matchTemplates( CalibratedRai< T > overview )
 	{
 		matchedTemplates = new ArrayList<>();
 
-		TemplateMatcherTranslation2D templateToOverviewMatcher
-				= new TemplateMatcherTranslation2D( overview );
+		final TemplateMatcherTranslation2D< T > templateToOverviewMatcher
+				= new TemplateMatcherTranslation2D<>( overview, settings, service );
 
+		if ( settings.showMatching && templateToOverviewMatcher.getOverviewImagePlus() == null )
+			Utils.log( "The matches are not shown on the overview, as the overview overlay "
+					+ "is unavailable for tiled matching; see the matches table instead." );
+
+		final ArrayList< File > filesToMatch = new ArrayList<>();
+		int numUpToDate = 0;
 		for ( File templateFile : templateFiles )
 		{
 			if ( settings.isHierarchicalMatching
 					&& templateFile.getName().contains( highMagId ) )
 				continue; // as this will be later matched in the hierarchy
 
-			final CalibratedRaiPlus< T > template = openImage( templateFile );
+			if ( isUpToDate( templateFile ) )
+			{
+				addPreviousResults( templateFile );
+				numUpToDate++;
+				continue;
+			}
 
-			final MatchedTemplate matchedTemplate = templateToOverviewMatcher.match( template );
+			filesToMatch.add( templateFile );
+		}
 
-			matchedTemplate.file = templateFile;
+		if ( numUpToDate > 0 )
+			Utils.log( "Skipping " + numUpToDate + " templates, which are unchanged since the last run; their results are taken from the manifest." );
 
-			if ( settings.showMatching )
-				showBestMatchOnOverview( matchedTemplate,
-						templateToOverviewMatcher.getOverviewImagePlus() );
+		final int numPreprocessors = Math.max( 1, settings.numTemplateThreads );
+		final int numMatchers = Math.max( 1, settings.numParallelCorrelations );
+		final int capacity = Math.max( 1, settings.pipelineQueueCapacity );
 
-			if ( settings.saveResultsAsBdv )
-				exportTemplate( matchedTemplate );
+		final BlockingQueue< TemplateJob > loaded = new ArrayBlockingQueue<>( capacity );
+		final BlockingQueue< TemplateJob > processed = new ArrayBlockingQueue<>( capacity );
+		final BlockingQueue< TemplateJob > matched = new ArrayBlockingQueue<>( capacity );
+
+		final Semaphore inFlight = new Semaphore( 3 * capacity + numPreprocessors + numMatchers );
+		final AtomicInteger runningPreprocessors = new AtomicInteger( numPreprocessors );
+
+		final ExecutorService executorService =
+				Executors.newFixedThreadPool( 1 + numPreprocessors + numMatchers );
+
+		executorService.submit( () ->
+				load( templateToOverviewMatcher, filesToMatch, loaded, inFlight, numPreprocessors ) );
+
+		for ( int i = 0; i < numPreprocessors; i++ )
+			executorService.submit( () ->
+					preprocess( templateToOverviewMatcher, loaded, processed, runningPreprocessors, numMatchers ) );
+
+		for ( int i = 0; i < numMatchers; i++ )
+			executorService.submit( () ->
+					match( templateToOverviewMatcher, processed, matched ) );
+
+		try
+		{
+			commitInFileOrder( filesToMatch.size(), numMatchers, matched, inFlight, templateToOverviewMatcher );
+		}
+		finally
+		{
+			executorService.shutdownNow();
+			closeWhenTerminated( templateToOverviewMatcher, executorService );
+		}
+	}
+
+	/**
+	 * @return true if the template (and its high resolution template) were already
+	 * matched (and exported) with the current settings, according to the manifest
+	 */
+	private boolean isUpToDate( File templateFile )
+	{
+		if ( manifest == null || ! settings.skipUnchangedTemplates ) return false;
 
-			if ( settings.isHierarchicalMatching && templateFile.getName().contains( lowMagId ) )
+		if ( ! manifest.isUpToDate( templateFile, settings.saveResultsAsBdv ) ) return false;
+
+		if ( isLowMagOfHierarchy( templateFile ) )
+		{
+			final File highResFile = getHighResFile( templateFile );
+			return highResFile != null && manifest.isUpToDate( highResFile, settings.saveResultsAsBdv );
+		}
+
+		return true;
+	}
+
+	/**
+	 * Adds the results of a previous run, as recorded in the manifest, to the
+	 * matched templates, such that they are part of the results of this run.
+	 * The images are only opened if they are exported again.
+	 */
+	private void addPreviousResults( File templateFile )
+	{
+		final ArrayList< File > files = new ArrayList<>();
+		files.add( templateFile );
+		if ( isLowMagOfHierarchy( templateFile ) )
+			files.add( getHighResFile( templateFile ) );
+
+		for ( File file : files )
+		{
+			try
+			{
+				final ResultsManifest.Entry entry = manifest.getEntry( file );
+
+				final MatchedTemplate< T > matchedTemplate = entry.calibrationNanometer == null || entry.sizePixels == null ?
+						new MatchedTemplate<>( openImage( file ), entry.positionNanometer.clone() ) :
+						new MatchedTemplate<>(
+								new LazyCalibratedRai<>( entry.calibrationNanometer.clone(), () -> openImage( file ).rai() ),
+								entry.positionNanometer.clone(),
+								entry.sizePixels.clone() );
+				matchedTemplate.file = file;
+				matchedTemplate.score = entry.score;
+				matchedTemplate.secondPeakRatio = entry.secondPeakRatio;
+				matchedTemplate.peakSharpness = entry.peakSharpness;
+				matchedTemplate.angleDegrees = entry.angleDegrees;
+				matchedTemplate.scale = entry.scale;
+				matchedTemplate.isAmbiguous = entry.isAmbiguous;
+
+				matchedTemplates.add( matchedTemplate );
+			}
+			catch ( Exception e )
+			{
+				Utils.log( "Error: Could not load the previous result of " + file + ": " + e );
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Releases the (off-heap) resources of the matcher, once no worker uses it anymore.
+	 */
+	private void closeWhenTerminated(
+			TemplateMatcherTranslation2D< T > matcher,
+			ExecutorService executorService )
+	{
+		try
+		{
+			if ( executorService.awaitTermination( 1, TimeUnit.MINUTES ) )
+				matcher.close();
+			else
+				Utils.log( "Matching threads did not terminate, matcher resources are not released." );
+		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void load(
+			TemplateMatcherTranslation2D< T > templateToOverviewMatcher,
+			List< File > files,
+			BlockingQueue< TemplateJob > output,
+			Semaphore inFlight,
+			int numConsumers )
+	{
+		try
+		{
+			for ( int i = 0; i < files.size(); i++ )
+			{
+				inFlight.acquire();
+
+				final TemplateJob job = new TemplateJob( i, files.get( i ) );
+
+				try
+				{
+					job.isStreamed = templateToOverviewMatcher.canStream( job.file );
+					job.template = openTemplate( job.file, job.isStreamed );
+
+					if ( isLowMagOfHierarchy( job.file ) )
+					{
+						job.highResFile = getHighResFile( job.file );
+						job.isHighResStreamed = templateToOverviewMatcher.canStream( job.highResFile );
+						job.highResTemplate = openTemplate( job.highResFile, job.isHighResStreamed );
+					}
+				}
+				catch ( Throwable e )
+				{
+					job.error = e;
+				}
+
+				output.put( job );
+			}
+		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			putEndOfStream( output, numConsumers );
+		}
+	}
+
+	private void preprocess(
+			TemplateMatcherTranslation2D< T > templateToOverviewMatcher,
+			BlockingQueue< TemplateJob > input,
+			BlockingQueue< TemplateJob > output,
+			AtomicInteger runningPreprocessors,
+			int numConsumers )
+	{
+		try
+		{
+			while ( true )
+			{
+				final TemplateJob job = input.take();
+
+				if ( job == endOfStream ) break;
+
+				if ( job.error == null )
+				{
+					try
+					{
+						job.processedTemplate = templateToOverviewMatcher.processTemplate(
+								job.template, job.isStreamed ? job.file : null );
+					}
+					catch ( Throwable e )
+					{
+						job.error = e;
+					}
+				}
+
+				output.put( job );
+			}
+		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			if ( runningPreprocessors.decrementAndGet() == 0 )
+				putEndOfStream( output, numConsumers );
+		}
+	}
+
+	private void match(
+			TemplateMatcherTranslation2D< T > templateToOverviewMatcher,
+			BlockingQueue< TemplateJob > input,
+			BlockingQueue< TemplateJob > output )
+	{
+		try
+		{
+			while ( true )
 			{
-				File highResFile = getHighResFile( templateFile );
+				final TemplateJob job = input.take();
+
+				if ( job == endOfStream ) break;
+
+				if ( job.error == null )
+				{
+					try
+					{
+						matchTemplate( job, templateToOverviewMatcher );
+					}
+					catch ( Throwable e )
+					{
+						job.error = e;
+					}
+				}
+
+				output.put( job );
+			}
+		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			// one per matcher, such that the commit knows when no more jobs will come
+			putEndOfStream( output, 1 );
+		}
+	}
 
-				final CalibratedRaiPlus< T > highResTemplate = openImage( highResFile );
+	private void putEndOfStream( BlockingQueue< TemplateJob > output, int numConsumers )
+	{
+		try
+		{
+			for ( int i = 0; i < numConsumers; i++ )
+				output.put( endOfStream );
+		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
 
-				final TemplateMatcherTranslation2D highResToLowResMatcher
-						= new TemplateMatcherTranslation2D( templateToOverviewMatcher.getProcessedTemplate() );
+	/**
+	 * Matches the template of the job; in hierarchical mode also
+	 * matches the corresponding high resolution template.
+	 */
+	private void matchTemplate(
+			TemplateJob job,
+			TemplateMatcherTranslation2D< T > templateToOverviewMatcher )
+	{
+		final MatchedTemplate< T > matchedTemplate =
+				templateToOverviewMatcher.match(
+						job.template,
+						job.processedTemplate,
+						searchWindows.get( job.file.getName() ) );
 
-				final MatchedTemplate matchedHighResTemplate
-						= highResToLowResMatcher.match( highResTemplate );
+		matchedTemplate.file = job.file;
+		job.matchedTemplates.add( matchedTemplate );
 
-				matchedHighResTemplate.file = highResFile;
+		if ( job.highResTemplate != null )
+		{
+			try ( TemplateMatcherTranslation2D< T > highResToLowResMatcher
+					= new TemplateMatcherTranslation2D<>(
+							matchedTemplate.processedTemplate, settings.copyForHierarchicalMatching(), service ) )
+			{
+				// A search window of the high resolution template is given in overview
+				// coordinates, while the matching happens within the low resolution template
+				SearchWindow highResSearchWindow = searchWindows.get( job.highResFile.getName() );
+				if ( highResSearchWindow != null )
+					highResSearchWindow = highResSearchWindow.translate(
+							negate( matchedTemplate.matchedPositionNanometer ) );
+
+				final MatchedTemplate< T > matchedHighResTemplate
+						= highResToLowResMatcher.match(
+								job.highResTemplate,
+								highResToLowResMatcher.processTemplate(
+										job.highResTemplate, job.isHighResStreamed ? job.highResFile : null ),
+								highResSearchWindow );
+
+				matchedHighResTemplate.file = job.highResFile;
 
 				// Show match on lower resolution template
 				if ( settings.showIntermediateResults )
@@ -147,15 +525,116 @@ public class TemplatesMatcher< T extends RealType< T > & NativeType< T > >
 				for ( int d = 0; d < 2; d++ )
 					matchedHighResTemplate.matchedPositionNanometer[ d ] += matchedTemplate.matchedPositionNanometer[ d ];
 
-				if ( settings.showMatching )
-					showBestMatchOnOverview( matchedHighResTemplate,
-							templateToOverviewMatcher.getOverviewImagePlus() );
+				job.matchedTemplates.add( matchedHighResTemplate );
+			}
+		}
+	}
+
+	private void commitInFileOrder(
+			int numJobs,
+			int numProducers,
+			BlockingQueue< TemplateJob > input,
+			Semaphore inFlight,
+			TemplateMatcherTranslation2D< T > templateToOverviewMatcher )
+	{
+		final Map< Integer, TemplateJob > pending = new HashMap<>();
+		int next = 0;
+		int numFinishedProducers = 0;
+
+		while ( next < numJobs && numFinishedProducers < numProducers )
+		{
+			try
+			{
+				final TemplateJob job = input.take();
 
-				if( settings.saveResultsAsBdv )
-					exportTemplate( matchedHighResTemplate );
+				if ( job == endOfStream )
+				{
+					numFinishedProducers++;
+					continue;
+				}
 
+				pending.put( job.index, job );
+			}
+			catch ( InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+				return;
+			}
+
+			while ( pending.containsKey( next ) )
+			{
+				commit( pending.remove( next++ ), templateToOverviewMatcher );
+				inFlight.release();
 			}
 		}
+
+		if ( next < numJobs )
+		{
+			// the pipeline ended early, commit what is there
+			int numMissing = 0;
+			for ( int index = next; index < numJobs; index++ )
+				if ( pending.containsKey( index ) )
+					commit( pending.remove( index ), templateToOverviewMatcher );
+				else
+					numMissing++;
+
+			Utils.log( "Error: Matching ended early, " + numMissing + " templates were not matched." );
+		}
+	}
+
+	private void commit(
+			TemplateJob job,
+			TemplateMatcherTranslation2D< T > templateToOverviewMatcher )
+	{
+		if ( job.error != null )
+		{
+			Utils.log( "Error: Could not match " + job.file + ": " + job.error );
+			job.error.printStackTrace();
+			if ( manifest != null )
+			{
+				manifest.setFailed( job.file );
+
+				final File highResFile = isLowMagOfHierarchy( job.file ) ? getHighResFile( job.file ) : null;
+				if ( highResFile != null )
+					manifest.setFailed( highResFile );
+			}
+			return;
+		}
+
+		for ( MatchedTemplate< T > matchedTemplate : job.matchedTemplates )
+		{
+			matchedTemplates.add( matchedTemplate );
+
+			if ( settings.showMatching )
+				showBestMatchOnOverview( matchedTemplate,
+						templateToOverviewMatcher.getOverviewImagePlus() );
+
+			if ( manifest != null )
+				manifest.setMatched( matchedTemplate );
+
+			if ( settings.saveResultsAsBdv )
+				resultsWriter.exportTemplate( matchedTemplate, ! settings.lazyLoading, getOnExported( matchedTemplate ) );
+		}
+	}
+
+	private Runnable getOnExported( MatchedTemplate< T > matchedTemplate )
+	{
+		if ( manifest == null ) return null;
+
+		return () -> manifest.setExported( matchedTemplate.file );
+	}
+
+	private static double[] negate( double[] values )
+	{
+		final double[] negated = new double[ values.length ];
+		for ( int d = 0; d < values.length; d++ )
+			negated[ d ] = - values[ d ];
+		return negated;
+	}
+
+	private boolean isLowMagOfHierarchy( File file )
+	{
+		return settings.isHierarchicalMatching && file.getName().contains( lowMagId );
 	}
 
 	private File getHighResFile( File lowResFile )
@@ -173,19 +652,38 @@ public class TemplatesMatcher< T extends RealType< T > & NativeType< T > >
 	{
 		rawOverview = openImage( settings.overviewImageFile );
 
-		rotatedOverviewForExport = Processor.rotate2D( rawOverview, settings.overviewAngleDegrees );
+		if ( settings.materializeRotatedOverview )
+		{
+			rotatedOverviewForExport = Processor.rotate2DMaterialized(
+					rawOverview,
+					settings.overviewAngleDegrees,
+					settings.overviewInterpolation,
+					settings.numThreads,
+					service );
+		}
+		else
+		{
+			rotatedOverviewForExport = Processor.rotate2D(
+					rawOverview, settings.overviewAngleDegrees, settings.overviewInterpolation );
 
-		rotatedOverviewForExport = new DefaultCalibratedRai<>(
-				Views.zeroMin( rotatedOverviewForExport.rai() ), rotatedOverviewForExport.nanometerCalibration() );
+			rotatedOverviewForExport = new DefaultCalibratedRai<>(
+					Views.zeroMin( rotatedOverviewForExport.rai() ), rotatedOverviewForExport.nanometerCalibration() );
+		}
 
 		if ( settings.matchingPixelSpacingNanometer != 0 )
 		{
 			final long[] overviewSubSampling = getOverviewSubSamplingXY( rawOverview, settings.matchingPixelSpacingNanometer );
 
 			Utils.log( "Requested matching pixel size [nm]: " + settings.matchingPixelSpacingNanometer );
-			Utils.log( "Sub-sampling overview image by " + overviewSubSampling[ 0 ] );
-
-			subsampledOverviewForMatching = Processor.subSample( rotatedOverviewForExport, overviewSubSampling );
+			Utils.log( "Downsampling overview image by " + overviewSubSampling[ 0 ]
+					+ " (" + settings.downsamplingMode.toLowerCase() + ")" );
+
+			subsampledOverviewForMatching = Processor.downsample(
+					rotatedOverviewForExport,
+					overviewSubSampling,
+					settings.downsamplingMode,
+					settings.numThreads,
+					service );
 		}
 		else
 		{
@@ -230,89 +728,64 @@ public class TemplatesMatcher< T extends RealType< T > & NativeType< T > >
 	private boolean saveImagesAsBdvHdf5()
 	{
 		Utils.log( "# Saving results" );
-		exportOverview( rawOverview, rawOverview.is3D, rawOverview.isMultiChannel );
-		exportTemplates();
-		return true;
-	}
-
-	private void exportTemplates()
-	{
-		for ( MatchedTemplate< T > template : matchedTemplates )
+		final ExecutorService service = Executors.newFixedThreadPool( Math.max( 1, settings.numThreads ) );
+		try
 		{
-			exportTemplate( template );
+			final ResultsWriter< T > writer = new ResultsWriter<>( settings, service );
+			exportOverview( writer );
+			for ( MatchedTemplate< T > template : matchedTemplates )
+				writer.exportTemplate( template, ! settings.lazyLoading, getOnExported( template ) );
+			return writer.awaitCompletion();
+		}
+		finally
+		{
+			service.shutdown();
 		}
 	}
 
-	private void exportTemplate( MatchedTemplate< T > template )
-	{
-		// TODO: maybe let the user confirm?!
-		RandomAccessibleInterval< T > rai = template.calibratedRai.rai();
-
-		String path = getOutputPath( template.file.getName() );
-		Utils.log( "Exporting " + template.file.getName() );
-
-		if ( rai.numDimensions() == 2 ) // add z-dimension
-			rai = Views.addDimension( rai, 0, 0 );
-
-		// add channel dimension
-		rai = Views.addDimension( rai, 0, 0 );
-
-		// add time dimension
-		rai = Views.addDimension( rai, 0, 0 );
-
-		new BdvRaiXYZCTExport< T >().export(
-				rai,
-				template.file.getName(),
-				path,
-				template.calibratedRai.nanometerCalibration(),
-				"nanometer",
-				template.matchedPositionNanometer );
-	}
-
-	private String getOutputPath( String name )
+	private void exportOverview( ResultsWriter< T > writer )
 	{
-		return settings.outputDirectory + File.separator + name;
+		if ( ResultsWriter.REFERENCES.equals( settings.exportFormat ) )
+			writer.writeOverviewReference(
+					settings.overviewImageFile,
+					getOverviewTransform(),
+					rawOverview.isMultiChannel );
+		else
+			writer.exportOverview(
+					rotatedOverviewForExport,
+					rawOverview.is3D,
+					rawOverview.isMultiChannel,
+					settings.materializeRotatedOverview,
+					settings.overviewImageFile,
+					settings.overviewAngleDegrees );
 	}
 
-	private void exportOverview( CalibratedRai< T > overview, boolean is3D, boolean isMultiChannel )
+	/**
+	 * @return the transformation from the pixels of the overview file
+	 * to the nanometer coordinates of the matched positions, i.e.
+	 * the rotation, the shift to zero min and the calibration
+	 */
+	private AffineTransform3D getOverviewTransform()
 	{
-		Utils.log( "Exporting overview..." );
-
-		double[] calibration = new double[ 3 ];
-		calibration[ 0 ] = overview.nanometerCalibration()[ 0 ];
-		calibration[ 1 ] = overview.nanometerCalibration()[ 1 ];
-		calibration[ 2 ] = 2000;
-
-		double[] translation = new double[ 3 ];
-
-		String path = getOutputPath( "overview" );
-
-		RandomAccessibleInterval< T > overviewRai = overview.rai();
-
-		if ( !is3D ) // add z-dimension
-			overviewRai = Views.addDimension( overviewRai, 0, 0 );
-
-		if ( isMultiChannel ) // swap z and channel dimension
-			overviewRai = Views.permute( overviewRai, 2, 3 );
-		else
-			overviewRai = Views.addDimension( overviewRai, 0, 0 );
-
-		// add time dimension
-		overviewRai = Views.addDimension( overviewRai, 0, 0 );
-
-		new BdvRaiXYZCTExport< T >().export(
-				Views.zeroMin( overviewRai ),
-				"overview",
-				path,
-				calibration,
-				"nanometer",
-				translation );
+		final RandomAccessibleInterval< T > rotated = Processor.rotate2D(
+				rawOverview.rai(), settings.overviewAngleDegrees, settings.overviewInterpolation );
+
+		final AffineTransform3D transform = new AffineTransform3D();
+		transform.rotate( 2, Math.toRadians( - settings.overviewAngleDegrees ) );
+		transform.translate( - rotated.min( 0 ), - rotated.min( 1 ), 0 );
+		transform.preConcatenate( new Scale3D(
+				rawOverview.nanometerCalibration()[ 0 ],
+				rawOverview.nanometerCalibration()[ 1 ],
+				ResultsWriter.OVERVIEW_Z_CALIBRATION_NANOMETER ) );
+
+		return transform;
 	}
 
-
 	private void showBestMatchOnOverview(
 			MatchedTemplate matchedTemplate, ImagePlus overviewImagePlus )
 	{
+		if ( overviewImagePlus == null ) return; // tiled matching, logged in matchTemplates
+
 		final double[] position = matchedTemplate.matchedPositionNanometer;
 		final double[] size = matchedTemplate.getImageSizeNanometer();
 
@@ -349,13 +822,51 @@ public class TemplatesMatcher< T extends RealType< T > & NativeType< T > >
 		return r;
 	}
 
+	/**
+	 * Opens a streamed template lazily, as its pixels are read by the streaming
+	 * projection, and otherwise only by the export, such that they are not read twice.
+	 */
+	private CalibratedRaiPlus< T > openTemplate( File file, boolean isStreamed )
+	{
+		if ( isStreamed && ! settings.lazyLoading )
+		{
+			Utils.log( "Opening (lazily, as it is streamed): " + file );
+			return ImageIO.withBFopenLazyRAI( file );
+		}
+
+		return openImage( file );
+	}
+
 	private CalibratedRaiPlus< T > openImage( File file )
 	{
 		Utils.log( "Opening: " + file );
-		final CalibratedRaiPlus calibratedRaiPlus = ImageIO.withBFopenRAI( file );
+		final CalibratedRaiPlus calibratedRaiPlus = settings.lazyLoading ?
+				ImageIO.withBFopenLazyRAI( file ) : ImageIO.withBFopenRAI( file );
 		Utils.log( "Pixel size [nm]: " + calibratedRaiPlus.nanometerCalibration()[ 0 ] );
 		return  calibratedRaiPlus;
 	}
 
 
+	/**
+	 * A template file travelling through the matching pipeline.
+	 */
+	private class TemplateJob
+	{
+		final int index;
+		final File file;
+		CalibratedRaiPlus< T > template;
+		boolean isStreamed;
+		File highResFile;
+		CalibratedRaiPlus< T > highResTemplate;
+		boolean isHighResStreamed;
+		CalibratedRai< T > processedTemplate;
+		final ArrayList< MatchedTemplate< T > > matchedTemplates = new ArrayList<>();
+		Throwable error;
+
+		TemplateJob( int index, File file )
+		{
+			this.index = index;
+			this.file = file;
+		}
+	}
 }
@@ -1,5 +1,11 @@
 package de.embl.cba.templatematching.match;
 
+import de.embl.cba.templatematching.correlate.Correlators;
+import de.embl.cba.templatematching.process.OverviewPreparation;
+import de.embl.cba.templatematching.process.Processor;
+import de.embl.cba.templatematching.process.Projection;
+import de.embl.cba.templatematching.save.ResultsWriter;
+
 import java.io.File;
 
 public class TemplatesMatchingSettings
@@ -7,7 +13,16 @@ public class TemplatesMatchingSettings
 	public File templatesInputDirectory;
 	public File outputDirectory;
 	public File overviewImageFile;
+	public File searchWindowsFile; // optional, see SearchWindow.readSearchWindows
 	public double overviewAngleDegrees = 11.5;
+	public boolean materializeRotatedOverview = true; // render once for matching and export
+	public String overviewInterpolation = Processor.NEAREST;
+	public boolean rotationSearch = false; // search angles around overviewAngleDegrees; the found angle is reported only, not applied to the export
+	public double rotationSearchRangeDegrees = 3.0;
+	public double rotationSearchStepDegrees = 0.5;
+	public boolean scaleSearch = false; // search scalings around the nominal calibration; skipped if rotationSearch is set
+	public double scaleSearchRange = 0.05;
+	public double scaleSearchStep = 0.01;
 
 	public boolean confirmScalingViaUI;
 	public double matchingPixelSpacingNanometer;
@@ -15,5 +30,95 @@ public class TemplatesMatchingSettings
 	public boolean isHierarchicalMatching;
 	public boolean showMatching = true;
 	public boolean saveResultsAsBdv = true;
+	public String exportFormat = ResultsWriter.BDV_HDF5;
+	public boolean skipUnchangedTemplates = true; // as recorded in the manifest of the output directory
 	public boolean showIntermediateResults = false;
+	public boolean lazyLoading = true;
+	public String downsamplingMode = Processor.BLOCK_AVERAGE;
+	public boolean streamingProjection = true;
+	public String projectionMode = Projection.AVERAGE;
+	public int projectionNumSlices = 0; // around the z center; 0 = all slices
+	public int medianNumBins = 0; // approximate median projection; 0 = exact
+	public int overviewNoiseLevel = 5; // added to flat regions, where the correlation is undefined
+	public long overviewNoiseSeed = OverviewPreparation.DEFAULT_SEED;
+	public boolean tiledMatching = false; // always used for overviews exceeding 2^31 pixels
+	public int tileSize = 4096; // template positions per tile and dimension
+	public int numCachedTiles = 16; // prepared tiles, with their correlators, reused across templates
+	public boolean offHeapOverview = false; // implies tiled matching: the overview is prepared once into a memory-mapped file, the tile correlation caches are kept off-heap
+	public String correlationEngine = Correlators.FFT;
+	public int numThreads = Runtime.getRuntime().availableProcessors();
+	public int numTemplateThreads = Math.max( 1, Runtime.getRuntime().availableProcessors() / 2 );
+	public int numParallelCorrelations = 1;
+	public int pipelineQueueCapacity = 2;
+	public int exportBacklogCapacity = 2; // exports waiting for the writer thread, before matching blocks
+	public double ambiguousPeakRatio = 0.9; // second best / best peak above which a match is flagged
+	public int numPyramidLevels = 0; // 0 = exhaustive search at matching resolution
+	public int numPyramidCandidates = 5;
+
+	/**
+	 * @return a copy, e.g. to change settings for a single matcher
+	 */
+	public TemplatesMatchingSettings copy()
+	{
+		final TemplatesMatchingSettings copy = new TemplatesMatchingSettings();
+		copy.templatesInputDirectory = templatesInputDirectory;
+		copy.outputDirectory = outputDirectory;
+		copy.overviewImageFile = overviewImageFile;
+		copy.searchWindowsFile = searchWindowsFile;
+		copy.overviewAngleDegrees = overviewAngleDegrees;
+		copy.materializeRotatedOverview = materializeRotatedOverview;
+		copy.overviewInterpolation = overviewInterpolation;
+		copy.rotationSearch = rotationSearch;
+		copy.rotationSearchRangeDegrees = rotationSearchRangeDegrees;
+		copy.rotationSearchStepDegrees = rotationSearchStepDegrees;
+		copy.scaleSearch = scaleSearch;
+		copy.scaleSearchRange = scaleSearchRange;
+		copy.scaleSearchStep = scaleSearchStep;
+		copy.confirmScalingViaUI = confirmScalingViaUI;
+		copy.matchingPixelSpacingNanometer = matchingPixelSpacingNanometer;
+		copy.templatesRegExp = templatesRegExp;
+		copy.isHierarchicalMatching = isHierarchicalMatching;
+		copy.showMatching = showMatching;
+		copy.saveResultsAsBdv = saveResultsAsBdv;
+		copy.exportFormat = exportFormat;
+		copy.skipUnchangedTemplates = skipUnchangedTemplates;
+		copy.showIntermediateResults = showIntermediateResults;
+		copy.lazyLoading = lazyLoading;
+		copy.downsamplingMode = downsamplingMode;
+		copy.streamingProjection = streamingProjection;
+		copy.projectionMode = projectionMode;
+		copy.projectionNumSlices = projectionNumSlices;
+		copy.medianNumBins = medianNumBins;
+		copy.overviewNoiseLevel = overviewNoiseLevel;
+		copy.overviewNoiseSeed = overviewNoiseSeed;
+		copy.tiledMatching = tiledMatching;
+		copy.tileSize = tileSize;
+		copy.numCachedTiles = numCachedTiles;
+		copy.offHeapOverview = offHeapOverview;
+		copy.correlationEngine = correlationEngine;
+		copy.numThreads = numThreads;
+		copy.numTemplateThreads = numTemplateThreads;
+		copy.numParallelCorrelations = numParallelCorrelations;
+		copy.pipelineQueueCapacity = pipelineQueueCapacity;
+		copy.exportBacklogCapacity = exportBacklogCapacity;
+		copy.ambiguousPeakRatio = ambiguousPeakRatio;
+		copy.numPyramidLevels = numPyramidLevels;
+		copy.numPyramidCandidates = numPyramidCandidates;
+		return copy;
+	}
+
+	/**
+	 * @return a copy for matching a high resolution template within its (small)
+	 * low resolution template, i.e. an exhaustive translation search on the heap
+	 */
+	public TemplatesMatchingSettings copyForHierarchicalMatching()
+	{
+		final TemplatesMatchingSettings copy = copy();
+		copy.rotationSearch = false;
+		copy.scaleSearch = false;
+		copy.numPyramidLevels = 0;
+		copy.tiledMatching = false;
+		copy.offHeapOverview = false;
+		return copy;
+	}
 }
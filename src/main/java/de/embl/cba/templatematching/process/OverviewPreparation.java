@@ -0,0 +1,222 @@
+package de.embl.cba.templatematching.process;
+
+import de.embl.cba.templatematching.Utils;
+import de.embl.cba.templatematching.image.MappedFloatImage;
+import ij.process.FloatProcessor;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Prepares the overview image for matching: converts it once into a float
+ * array, in parallel over rows, which is then shared by all consumers.
+ *
+ * The normalized cross-correlation is undefined where the overview has no
+ * variance, e.g. in the zero background of the rotated overview. Therefore,
+ * integer noise in [ 0, noiseLevel ] is added to the pixels whose 3 x 3
+ * neighbourhood is flat. The noise of each pixel is a hash of the seed and the
+ * pixel position, such that results are reproducible and independent of the
+ * number of threads. Regions prepared with {@link #prepare(RandomAccessibleInterval, long[], long[])}
+ * are identical in their overlap, and identical to the whole prepared image.
+ */
+public class OverviewPreparation
+{
+	public static final long DEFAULT_SEED = 42;
+
+	private final int noiseLevel;
+	private final long seed;
+	private final int numThreads;
+	private final ExecutorService service;
+
+	/**
+	 * @param noiseLevel
+	 * @param seed
+	 * @param numThreads
+	 * @param service runs the rows of numThreads - 1 threads, the calling thread takes part;
+	 *                may be shared, see Utils.parallelize; null for the calling thread only
+	 */
+	public OverviewPreparation( int noiseLevel, long seed, int numThreads, ExecutorService service )
+	{
+		this.noiseLevel = noiseLevel;
+		this.seed = seed;
+		this.numThreads = Math.max( 1, numThreads );
+		this.service = service;
+	}
+
+	/**
+	 * @param rai 2D, or 3D of which the first plane is used; may be a tile (with non-zero min)
+	 * @return the prepared overview
+	 */
+	public < T extends RealType< T > & NativeType< T > >
+	FloatProcessor prepare( RandomAccessibleInterval< T > rai )
+	{
+		final RandomAccessibleInterval< T > rai2D =
+				rai.numDimensions() == 3 ? Views.hyperSlice( rai, 2, rai.min( 2 ) ) : rai;
+
+		final int width = ( int ) rai2D.dimension( 0 );
+		final int height = ( int ) rai2D.dimension( 1 );
+
+		if ( ( long ) width * height > Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "Overview image is too large: " + width + " x " + height );
+
+		final float[] pixels = new float[ width * height ];
+
+		Utils.parallelize( height, numThreads, service, ( from, to ) ->
+				copyRows( rai2D, from, to, width, pixels ) );
+
+		if ( noiseLevel > 0 )
+		{
+			final byte[] isFlat = new byte[ pixels.length ];
+
+			Utils.parallelize( height, numThreads, service, ( from, to ) ->
+					findFlatPixels( pixels, width, height, from, to, isFlat ) );
+
+			Utils.parallelize( height, numThreads, service, ( from, to ) ->
+					addNoise( pixels, width, from, to, rai2D.min( 0 ), rai2D.min( 1 ), isFlat ) );
+		}
+
+		return new FloatProcessor( width, height, pixels );
+	}
+
+	/**
+	 * Prepares a region of a 2D image, reading one extra pixel on each side (within
+	 * the image), such that the flat pixels at the border of the region are detected
+	 * as in the whole image.
+	 *
+	 * @param rai 2D
+	 * @param min of the region
+	 * @param max of the region
+	 * @return the prepared region
+	 */
+	public < T extends RealType< T > & NativeType< T > >
+	FloatProcessor prepare( RandomAccessibleInterval< T > rai, long[] min, long[] max )
+	{
+		final long[] paddedMin = new long[ 2 ];
+		final long[] paddedMax = new long[ 2 ];
+		for ( int d = 0; d < 2; d++ )
+		{
+			paddedMin[ d ] = Math.max( rai.min( d ), min[ d ] - 1 );
+			paddedMax[ d ] = Math.min( rai.max( d ), max[ d ] + 1 );
+		}
+
+		final FloatProcessor padded = prepare( Views.interval( rai, paddedMin, paddedMax ) );
+
+		return Utils.crop( padded,
+				new int[]{ ( int ) ( min[ 0 ] - paddedMin[ 0 ] ), ( int ) ( min[ 1 ] - paddedMin[ 1 ] ) },
+				new int[]{ ( int ) ( max[ 0 ] - min[ 0 ] + 1 ), ( int ) ( max[ 1 ] - min[ 1 ] + 1 ) } );
+	}
+
+	/**
+	 * Prepares the overview in strips of rows into an off-heap image, such that
+	 * the heap only needs to hold one strip at a time.
+	 *
+	 * @param rai 2D, or 3D of which the first plane is used
+	 * @param stripHeight number of rows prepared at once
+	 * @return the prepared overview, which must be closed by the caller
+	 */
+	public < T extends RealType< T > & NativeType< T > >
+	MappedFloatImage prepareMapped( RandomAccessibleInterval< T > rai, int stripHeight ) throws IOException
+	{
+		final RandomAccessibleInterval< T > rai2D =
+				rai.numDimensions() == 3 ? Views.hyperSlice( rai, 2, rai.min( 2 ) ) : rai;
+
+		final int width = ( int ) rai2D.dimension( 0 );
+		final long height = rai2D.dimension( 1 );
+
+		final MappedFloatImage image = new MappedFloatImage( width, height );
+
+		try
+		{
+			for ( long y = 0; y < height; y += stripHeight )
+			{
+				final int numRows = ( int ) Math.min( stripHeight, height - y );
+
+				// one extra row on each side, such that flat regions are detected as in the whole image
+				final long min = Math.max( 0, y - 1 );
+				final long max = Math.min( height - 1, y + numRows );
+
+				final FloatProcessor strip = prepare( Views.interval( rai2D,
+						new long[]{ rai2D.min( 0 ), rai2D.min( 1 ) + min },
+						new long[]{ rai2D.max( 0 ), rai2D.min( 1 ) + max } ) );
+
+				image.setRows( y, ( float[] ) strip.getPixels(), ( int ) ( y - min ) * width, numRows );
+			}
+		}
+		catch ( RuntimeException e )
+		{
+			image.close();
+			throw e;
+		}
+
+		return image;
+	}
+
+	private static < T extends RealType< T > > void copyRows(
+			RandomAccessibleInterval< T > rai, int from, int to, int width, float[] pixels )
+	{
+		final Cursor< T > cursor = Views.flatIterable( Views.interval( rai,
+				new long[]{ rai.min( 0 ), rai.min( 1 ) + from },
+				new long[]{ rai.max( 0 ), rai.min( 1 ) + to - 1 } ) ).cursor();
+
+		int i = from * width;
+		while ( cursor.hasNext() )
+			pixels[ i++ ] = cursor.next().getRealFloat();
+	}
+
+	private static void findFlatPixels( float[] pixels, int width, int height, int from, int to, byte[] isFlat )
+	{
+		for ( int y = from; y < to; y++ )
+		{
+			final int yMin = Math.max( 0, y - 1 );
+			final int yMax = Math.min( height - 1, y + 1 );
+
+			for ( int x = 0; x < width; x++ )
+			{
+				final float value = pixels[ y * width + x ];
+				final int xMin = Math.max( 0, x - 1 );
+				final int xMax = Math.min( width - 1, x + 1 );
+
+				boolean flat = true;
+				for ( int j = yMin; j <= yMax && flat; j++ )
+					for ( int i = xMin; i <= xMax; i++ )
+						if ( pixels[ j * width + i ] != value )
+						{
+							flat = false;
+							break;
+						}
+
+				isFlat[ y * width + x ] = ( byte ) ( flat ? 1 : 0 );
+			}
+		}
+	}
+
+	private void addNoise( float[] pixels, int width, int from, int to, long minX, long minY, byte[] isFlat )
+	{
+		final long numValues = noiseLevel + 1;
+
+		for ( int y = from; y < to; y++ )
+		{
+			final long position = seed + ( ( minY + y ) << 32 ) + minX;
+			final int offset = y * width;
+
+			for ( int x = 0; x < width; x++ )
+				if ( isFlat[ offset + x ] != 0 )
+					pixels[ offset + x ] += Math.floorMod( hash( ( position + x ) * 0x9e3779b97f4a7c15L ), numValues );
+		}
+	}
+
+	/**
+	 * SplitMix64 finalizer
+	 */
+	private static long hash( long value )
+	{
+		value = ( value ^ ( value >>> 30 ) ) * 0xbf58476d1ce4e5b9L;
+		value = ( value ^ ( value >>> 27 ) ) * 0x94d049bb133111ebL;
+		return value ^ ( value >>> 31 );
+	}
+}
@@ -1,12 +1,21 @@
 package de.embl.cba.templatematching.process;
 
 import de.embl.cba.templatematching.Utils;
+import de.embl.cba.templatematching.correlate.PeakFinder;
 import de.embl.cba.templatematching.image.CalibratedRai;
 import de.embl.cba.templatematching.image.DefaultCalibratedRai;
 import de.embl.cba.transforms.utils.Scalings;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import net.imglib2.Cursor;
 import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealRandomAccessible;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellImg;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
 import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
 import net.imglib2.realtransform.AffineTransform2D;
 import net.imglib2.realtransform.AffineTransform3D;
@@ -16,14 +25,26 @@ import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.NumericType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.view.RandomAccessibleOnRealRandomAccessible;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
 import net.imglib2.view.Views;
 
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+
 import static de.embl.cba.templatematching.Utils.showIntermediateResult;
 import static de.embl.cba.transforms.utils.Transforms.createBoundingIntervalAfterTransformation;
 import static de.embl.cba.transforms.utils.Transforms.createTransformedView;
 
 public abstract class Processor
 {
+	public static final String NEAREST = "Nearest Neighbor";
+	public static final String LINEAR = "Linear";
+	public static final int CELL_SIZE = 256;
+
+	public static final String SUBSAMPLE = "Sub-sample";
+	public static final String BLOCK_AVERAGE = "Block Average";
+
 	public static < T extends RealType< T > & NativeType< T > >
 	CalibratedRai< T > subSample( CalibratedRai input, long[] subSampling )
 	{
@@ -36,16 +57,172 @@ public abstract class Processor
 		return new DefaultCalibratedRai( subSampled, newCalibration );
 	}
 
+	/**
+	 * @param input
+	 * @param factors integer downsampling factor per dimension
+	 * @param mode SUBSAMPLE (lazy, keeps every factor-th pixel) or BLOCK_AVERAGE
+	 * @param numThreads
+	 * @param service see {@link #blockAverage(CalibratedRai, long[], int, ExecutorService)}
+	 * @return
+	 */
+	public static < T extends RealType< T > & NativeType< T > >
+	CalibratedRai< T > downsample(
+			CalibratedRai< T > input, long[] factors, String mode, int numThreads, ExecutorService service )
+	{
+		if ( BLOCK_AVERAGE.equals( mode ) )
+			return blockAverage( input, factors, numThreads, service );
+		else
+			return subSample( input, factors );
+	}
+
+	/**
+	 * Averages blocks of factors[ 0 ] x factors[ 1 ] x ... pixels, reducing aliasing
+	 * compared to sub-sampling. Blocks at the upper borders may be smaller.
+	 *
+	 * The output is computed in a single pass, in parallel over output cells,
+	 * each reading its source block interval in memory order.
+	 *
+	 * @param input
+	 * @param factors integer downsampling factor per dimension
+	 * @param numThreads
+	 * @param service runs the cells of numThreads - 1 threads, the calling thread takes part;
+	 *                may be shared, see Utils.parallelize; null for the calling thread only
+	 * @return the block averaged image, with zero min
+	 */
+	public static < T extends RealType< T > & NativeType< T > >
+	CalibratedRai< T > blockAverage( CalibratedRai< T > input, long[] factors, int numThreads, ExecutorService service )
+	{
+		final RandomAccessibleInterval< T > rai = input.rai();
+		final int n = rai.numDimensions();
+
+		final long[] dimensions = new long[ n ];
+		final int[] cellDimensions = new int[ n ];
+		for ( int d = 0; d < n; d++ )
+		{
+			dimensions[ d ] = ( rai.dimension( d ) + factors[ d ] - 1 ) / factors[ d ];
+			cellDimensions[ d ] = d < 2 ? CELL_SIZE : 1;
+		}
+
+		final CellImg< T, ? > output =
+				new CellImgFactory<>( Util.getTypeFromInterval( rai ), cellDimensions ).create( dimensions );
+
+		final ArrayList< Interval > cellIntervals = getCellIntervals( output );
+
+		Utils.parallelize( cellIntervals.size(), numThreads, service, ( from, to ) ->
+		{
+			for ( int i = from; i < to; i++ )
+				blockAverage( rai, factors, output, cellIntervals.get( i ) );
+		} );
+
+		final double[] newCalibration =
+				getNewCalibration( input, Utils.asReciprocalDoubles( factors ) );
+
+		return new DefaultCalibratedRai<>( output, newCalibration );
+	}
+
+	private static < T extends RealType< T > & NativeType< T > >
+	void blockAverage(
+			RandomAccessibleInterval< T > input,
+			long[] factors,
+			RandomAccessibleInterval< T > output,
+			Interval outputCell )
+	{
+		final int n = input.numDimensions();
+
+		final long[] sourceMin = new long[ n ];
+		final long[] sourceMax = new long[ n ];
+		final int[] cellSize = new int[ n ];
+		int cellNumPixels = 1;
+		for ( int d = 0; d < n; d++ )
+		{
+			sourceMin[ d ] = input.min( d ) + outputCell.min( d ) * factors[ d ];
+			sourceMax[ d ] = Math.min( input.max( d ), input.min( d ) + ( outputCell.max( d ) + 1 ) * factors[ d ] - 1 );
+			cellSize[ d ] = ( int ) outputCell.dimension( d );
+			cellNumPixels *= cellSize[ d ];
+		}
+
+		final double[] sums = new double[ cellNumPixels ];
+		final int[] counts = new int[ cellNumPixels ];
+
+		// position within the source interval, advanced in flat iteration order
+		final long[] position = new long[ n ];
+		final long[] sourceSize = Intervals.dimensionsAsLongArray( new FinalInterval( sourceMin, sourceMax ) );
+
+		final Cursor< T > source = Views.flatIterable( Views.interval( input, sourceMin, sourceMax ) ).cursor();
+		while ( source.hasNext() )
+		{
+			final double value = source.next().getRealDouble();
+
+			int index = 0;
+			for ( int d = n - 1; d >= 0; d-- )
+				index = index * cellSize[ d ] + ( int ) ( position[ d ] / factors[ d ] );
+
+			sums[ index ] += value;
+			counts[ index ]++;
+
+			for ( int d = 0; d < n; d++ )
+			{
+				if ( ++position[ d ] < sourceSize[ d ] ) break;
+				position[ d ] = 0;
+			}
+		}
+
+		final Cursor< T > target = Views.flatIterable( Views.interval( output, outputCell ) ).cursor();
+		int i = 0;
+		while ( target.hasNext() )
+		{
+			target.next().setReal( sums[ i ] / counts[ i ] );
+			i++;
+		}
+	}
+
 	public static < T extends RealType< T > & NativeType< T > >
 	CalibratedRai< T > project( CalibratedRai input )
 	{
-		Utils.log( "Computing template average projection..." );
+		return project( input, Projection.AVERAGE, 0 );
+	}
 
+	public static < T extends RealType< T > & NativeType< T > >
+	CalibratedRai< T > project( CalibratedRai input, String mode, int numSlices )
+	{
+		return project( input, mode, numSlices, 0 );
+	}
+
+	public static < T extends RealType< T > & NativeType< T > >
+	CalibratedRai< T > project( CalibratedRai input, String mode, int numSlices, int medianNumBins )
+	{
+		return project( input, mode, numSlices, medianNumBins, 1, null );
+	}
+
+	/**
+	 * Projects a 3D input along z.
+	 *
+	 * @param input
+	 * @param mode see Projection, e.g. Projection.AVERAGE
+	 * @param numSlices number of slices around the z center to project; 0 for all slices
+	 * @param medianNumBins histogram bins of an approximate median projection; 0 for the exact median
+	 * @param numThreads
+	 * @param service see {@link Projection#setExecutorService(ExecutorService)}
+	 * @return
+	 */
+	public static < T extends RealType< T > & NativeType< T > >
+	CalibratedRai< T > project(
+			CalibratedRai input, String mode, int numSlices, int medianNumBins, int numThreads, ExecutorService service )
+	{
 		if ( input.rai().numDimensions() == 3 )
 		{
-			final RandomAccessibleInterval< T > average =
-					new Projection( input.rai(), 2 ).average();
-			return new DefaultCalibratedRai( average, input.nanometerCalibration() );
+			Utils.log( "Computing template " + mode.toLowerCase() + " projection..." );
+
+			final long[] range = Projection.getCentralRange(
+					input.rai().min( 2 ), input.rai().max( 2 ), numSlices );
+
+			final RandomAccessibleInterval< T > projection =
+					new Projection( input.rai(), 2, range[ 0 ], range[ 1 ] )
+							.setApproximateMedian( medianNumBins )
+							.setNumThreads( numThreads )
+							.setExecutorService( service )
+							.project( mode );
+			return new DefaultCalibratedRai( projection, input.nanometerCalibration() );
 		}
 		else
 		{
@@ -85,6 +262,9 @@ public abstract class Processor
 	}
 
 	public static int[] findMax( ij.process.ImageProcessor ip ) {
+		if ( ip instanceof FloatProcessor )
+			return new PeakFinder().findMaximum( ( FloatProcessor ) ip ).position();
+
 		int[] coord = new int[2];
 		float max = ip.getPixel(0, 0);
 		final int sWh = ip.getHeight();
@@ -103,11 +283,86 @@ public abstract class Processor
 		return (coord);
 	}
 
+	/**
+	 * Rotates the processor clockwise about its center, with bilinear interpolation,
+	 * and crops its central region.
+	 *
+	 * @param processor
+	 * @param angleDegrees
+	 * @param cropSize see {@link #getRotationCropSize}
+	 * @return
+	 */
+	public static FloatProcessor rotateAndCrop( FloatProcessor processor, double angleDegrees, int[] cropSize )
+	{
+		final FloatProcessor rotated = ( FloatProcessor ) processor.duplicate();
+		rotated.setInterpolationMethod( ImageProcessor.BILINEAR );
+		rotated.setBackgroundValue( 0 );
+		rotated.rotate( angleDegrees );
+
+		return Utils.crop( rotated, getCenteredCropMin( rotated, cropSize ), cropSize );
+	}
+
+	/**
+	 * Scales the processor with bilinear interpolation and crops its central region.
+	 * Sets the interpolation method of the processor to bilinear.
+	 *
+	 * @param processor
+	 * @param scale
+	 * @param cropSize must not be larger than the scaled processor
+	 * @return
+	 */
+	public static FloatProcessor scaleAndCrop( FloatProcessor processor, double scale, int[] cropSize )
+	{
+		processor.setInterpolationMethod( ImageProcessor.BILINEAR );
+		final FloatProcessor scaled = ( FloatProcessor ) processor.resize(
+				( int ) Math.round( processor.getWidth() * scale ),
+				( int ) Math.round( processor.getHeight() * scale ) );
+
+		return Utils.crop( scaled, getCenteredCropMin( scaled, cropSize ), cropSize );
+	}
+
+	public static int[] getCenteredCropMin( FloatProcessor processor, int[] cropSize )
+	{
+		return new int[]{
+				( processor.getWidth() - cropSize[ 0 ] ) / 2,
+				( processor.getHeight() - cropSize[ 1 ] ) / 2 };
+	}
+
+	/**
+	 * @param processor
+	 * @param maxAngleDegrees
+	 * @return the size of the largest central region, with the aspect ratio of
+	 * the processor, that contains only image data after rotations of up to
+	 * +/- maxAngleDegrees
+	 */
+	public static int[] getRotationCropSize( FloatProcessor processor, double maxAngleDegrees )
+	{
+		final double width = processor.getWidth();
+		final double height = processor.getHeight();
+		final double sin = Math.abs( Math.sin( Math.toRadians( Math.min( 45, Math.abs( maxAngleDegrees ) ) ) ) );
+		final double cos = Math.cos( Math.asin( sin ) );
+
+		final double scale = Math.min(
+				width / ( width * cos + height * sin ),
+				height / ( width * sin + height * cos ) );
+
+		return new int[]{
+				Math.max( 1, ( int ) Math.floor( width * scale ) - 2 ),
+				Math.max( 1, ( int ) Math.floor( height * scale ) - 2 ) };
+	}
+
 	public static < T extends RealType< T > & NativeType< T > >
 	CalibratedRai< T >
 	rotate2D( CalibratedRai< T > calibratedRai, double angle )
 	{
-		final RandomAccessibleInterval< T > rotate2D = rotate2D( calibratedRai.rai(), angle );
+		return rotate2D( calibratedRai, angle, NEAREST );
+	}
+
+	public static < T extends RealType< T > & NativeType< T > >
+	CalibratedRai< T >
+	rotate2D( CalibratedRai< T > calibratedRai, double angle, String interpolation )
+	{
+		final RandomAccessibleInterval< T > rotate2D = rotate2D( calibratedRai.rai(), angle, interpolation );
 
 		return new DefaultCalibratedRai< T >( rotate2D, calibratedRai.nanometerCalibration() );
 	}
@@ -115,30 +370,117 @@ public abstract class Processor
 	public static < T extends RealType< T > & NativeType< T > >
 	RandomAccessibleInterval< T >
 	rotate2D( RandomAccessibleInterval< T > rai, double angle )
+	{
+		return rotate2D( rai, angle, NEAREST );
+	}
+
+	public static < T extends RealType< T > & NativeType< T > >
+	RandomAccessibleInterval< T >
+	rotate2D( RandomAccessibleInterval< T > rai, double angle, String interpolation )
 	{
 		if ( rai.numDimensions() == 2 )
 		{
 			final AffineTransform2D affineTransform2D = new AffineTransform2D();
 			affineTransform2D.rotate(
 					Math.toRadians( -angle ) );
-			return createTransformedView( rai, affineTransform2D );
+			return createTransformedView( rai, affineTransform2D, interpolation );
 		} else if ( rai.numDimensions() == 3 )
 		{
 			final AffineTransform3D affineTransform3D = new AffineTransform3D();
 			affineTransform3D.rotate(
 					2, Math.toRadians( -angle ) );
-			return createTransformedView( rai, affineTransform3D );
+			return createTransformedView( rai, affineTransform3D, interpolation );
 		}
 		return null;
 	}
 
+	/**
+	 * Renders the rotated input once into a cell image, cells in parallel,
+	 * such that its consumers (matching, export) do not evaluate the
+	 * transformation and interpolation for every access again.
+	 *
+	 * @param calibratedRai
+	 * @param angle
+	 * @param interpolation NEAREST or LINEAR
+	 * @param numThreads
+	 * @param service see {@link #materialize(RandomAccessibleInterval, int, ExecutorService)}
+	 * @return the rotated image, with zero min
+	 */
+	public static < T extends RealType< T > & NativeType< T > >
+	CalibratedRai< T >
+	rotate2DMaterialized(
+			CalibratedRai< T > calibratedRai, double angle, String interpolation, int numThreads, ExecutorService service )
+	{
+		Utils.log( "Rotating overview image by " + angle + " degrees..." );
+
+		final RandomAccessibleInterval< T > rotated =
+				Views.zeroMin( rotate2D( calibratedRai.rai(), angle, interpolation ) );
+
+		return new DefaultCalibratedRai<>( materialize( rotated, numThreads, service ), calibratedRai.nanometerCalibration() );
+	}
+
+	/**
+	 * Copies a (lazy) zero min image into a cell image, cells in parallel.
+	 *
+	 * @param service runs the cells of numThreads - 1 threads, the calling thread takes part;
+	 *                may be shared, see Utils.parallelize; null for the calling thread only
+	 */
+	public static < T extends NativeType< T > >
+	RandomAccessibleInterval< T > materialize( RandomAccessibleInterval< T > rai, int numThreads, ExecutorService service )
+	{
+		final int[] cellDimensions = new int[ rai.numDimensions() ];
+		for ( int d = 0; d < cellDimensions.length; d++ )
+			cellDimensions[ d ] = d < 2 ? CELL_SIZE : 1;
+
+		final CellImg< T, ? > img = new CellImgFactory<>( Util.getTypeFromInterval( rai ), cellDimensions ).create( rai );
+
+		final ArrayList< Interval > cellIntervals = getCellIntervals( img );
+
+		Utils.parallelize( cellIntervals.size(), numThreads, service, ( from, to ) ->
+		{
+			for ( int i = from; i < to; i++ )
+			{
+				final Cursor< T > source = Views.flatIterable( Views.interval( rai, cellIntervals.get( i ) ) ).cursor();
+				final Cursor< T > target = Views.flatIterable( Views.interval( img, cellIntervals.get( i ) ) ).cursor();
+				while ( target.hasNext() )
+					target.next().set( source.next() );
+			}
+		} );
+
+		return img;
+	}
+
+	private static ArrayList< Interval > getCellIntervals( CellImg< ?, ? > img )
+	{
+		final int n = img.numDimensions();
+		final ArrayList< Interval > cellIntervals = new ArrayList<>();
+		for ( Cell< ? > cell : Views.flatIterable( img.getCells() ) )
+		{
+			final long[] min = new long[ n ];
+			final long[] dimensions = new long[ n ];
+			cell.min( min );
+			cell.dimensions( dimensions );
+			cellIntervals.add( FinalInterval.createMinSize( min, dimensions ) );
+		}
+		return cellIntervals;
+	}
+
 	public static < T extends NumericType< T > & NativeType< T > >
 	RandomAccessibleInterval createTransformedView(
 			RandomAccessibleInterval< T > rai, InvertibleRealTransform transform )
+	{
+		return createTransformedView( rai, transform, NEAREST );
+	}
+
+	public static < T extends NumericType< T > & NativeType< T > >
+	RandomAccessibleInterval createTransformedView(
+			RandomAccessibleInterval< T > rai, InvertibleRealTransform transform, String interpolation )
 	{
 		RealRandomAccessible rra =
 				Views.interpolate( Views.extendZero( rai ),
-						new NearestNeighborInterpolatorFactory<>() );
+						LINEAR.equals( interpolation ) ?
+								new NLinearInterpolatorFactory<>() :
+								new NearestNeighborInterpolatorFactory<>() );
 
 		rra = RealViews.transform( rra, transform );
 
@@ -1,5 +1,6 @@
 package de.embl.cba.templatematching.process;
 
+import de.embl.cba.templatematching.Utils;
 import net.imglib2.Cursor;
 import net.imglib2.FinalInterval;
 import net.imglib2.RandomAccess;
@@ -8,13 +9,35 @@ import net.imglib2.img.ImgFactory;
 import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
 import net.imglib2.view.Views;
 
 import java.util.Arrays;
-
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Projections of an image along one dimension.
+ *
+ * Average, sum, maximum and minimum projections of 3D images along z are
+ * computed plane-wise: the outer loop runs over the z planes, accumulating
+ * each plane into a float array, which reads the input in memory order.
+ * Output rows are split across numThreads threads of a given executor service,
+ * see {@link #setExecutorService(ExecutorService)}.
+ *
+ * The median is computed row-wise, collecting the values of each pixel along z
+ * in a reused buffer and selecting the median with a 256 bin histogram (8-bit)
+ * or quickselect; optionally it is approximated with a histogram,
+ * see {@link #setApproximateMedian(int)}.
+ */
 public class Projection< T extends RealType< T > & NativeType< T > >
 {
+	public static final String AVERAGE = "Average";
+	public static final String SUM = "Sum";
+	public static final String MAXIMUM = "Maximum";
+	public static final String MINIMUM = "Minimum";
+	public static final String MEDIAN = "Median";
 
 	private int[] inputAxesExcludingProjectionAxis;
 	private int projectionDimension;
@@ -24,6 +47,10 @@ public class Projection< T extends RealType< T > & NativeType< T > >
 	private RandomAccessibleInterval< T > input;
 	private FinalInterval projectionInterval;
 	private long[] outputDimensions;
+	private boolean planeWise = true;
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+	private ExecutorService service;
+	private int medianNumBins = 0;
 
 
 	public Projection( RandomAccessibleInterval< T > input, int projectionDimension )
@@ -64,8 +91,90 @@ public class Projection< T extends RealType< T > & NativeType< T > >
 		return Intervals.createMinMax( minMax );
 	}
 
+	/**
+	 * @param planeWise if false, the (slower) pixel-wise implementation is used,
+	 *                     iterating the projection dimension for each output pixel
+	 * @return
+	 */
+	public Projection< T > setPlaneWise( boolean planeWise )
+	{
+		this.planeWise = planeWise;
+		return this;
+	}
+
+	/**
+	 * Configures the median projection to be approximate, using a histogram with
+	 * numBins bins spanning the value range [ min, max ] of the projected input.
+	 * The approximate median deviates from the exact (lower) median by at most
+	 * half a bin width, i.e. ( max - min ) / ( 2 * numBins ).
+	 *
+	 * @param numBins number of histogram bins; 0 for the exact median
+	 * @return
+	 */
+	public Projection< T > setApproximateMedian( int numBins )
+	{
+		this.medianNumBins = Math.max( 0, numBins );
+		return this;
+	}
+
+	public Projection< T > setNumThreads( int numThreads )
+	{
+		this.numThreads = Math.max( 1, numThreads );
+		return this;
+	}
+
+	/**
+	 * @param service runs the rows of numThreads - 1 threads, the calling thread takes part;
+	 *                may be shared, see Utils.parallelize; if not set, the projection
+	 *                is computed in the calling thread only
+	 * @return
+	 */
+	public Projection< T > setExecutorService( ExecutorService service )
+	{
+		this.service = service;
+		return this;
+	}
+
+	public RandomAccessibleInterval< T > project( String mode )
+	{
+		switch ( mode )
+		{
+			case SUM:
+				return sum();
+			case MAXIMUM:
+				return maximum();
+			case MINIMUM:
+				return minimum();
+			case MEDIAN:
+				return median();
+			case AVERAGE:
+			default:
+				return average();
+		}
+	}
+
+	/**
+	 * @param min
+	 * @param max
+	 * @param numSlices number of slices around the center; 0 for all slices
+	 * @return { min, max } of the central numSlices slices within [ min, max ]
+	 */
+	public static long[] getCentralRange( long min, long max, int numSlices )
+	{
+		final long size = max - min + 1;
+
+		if ( numSlices <= 0 || numSlices >= size )
+			return new long[]{ min, max };
+
+		final long centralMin = min + ( size - numSlices ) / 2;
+		return new long[]{ centralMin, centralMin + numSlices - 1 };
+	}
+
 	public RandomAccessibleInterval< T > average( )
 	{
+		if ( isPlaneWiseApplicable() )
+			return projectPlaneWise( AVERAGE );
+
 		final Cursor< T > outputCursor = Views.iterable( output ).localizingCursor();
 
 		while ( outputCursor.hasNext() )
@@ -80,6 +189,9 @@ public class Projection< T extends RealType< T > & NativeType< T > >
 
 	public RandomAccessibleInterval< T > median( )
 	{
+		if ( isPlaneWiseApplicable() )
+			return medianPlaneWise();
+
 		final Cursor< T > outputCursor = Views.iterable( output ).localizingCursor();
 
 		while ( outputCursor.hasNext() )
@@ -94,6 +206,9 @@ public class Projection< T extends RealType< T > & NativeType< T > >
 
 	public RandomAccessibleInterval< T > sum( )
 	{
+		if ( isPlaneWiseApplicable() )
+			return projectPlaneWise( SUM );
+
 		final Cursor< T > outputCursor = Views.iterable( output ).localizingCursor();
 
 		while ( outputCursor.hasNext() )
@@ -108,6 +223,9 @@ public class Projection< T extends RealType< T > & NativeType< T > >
 
 	public RandomAccessibleInterval< T > maximum( )
 	{
+		if ( isPlaneWiseApplicable() )
+			return projectPlaneWise( MAXIMUM );
+
 		final Cursor< T > outputCursor = Views.iterable( output ).localizingCursor();
 
 		while ( outputCursor.hasNext() )
@@ -122,6 +240,9 @@ public class Projection< T extends RealType< T > & NativeType< T > >
 
 	public RandomAccessibleInterval< T > minimum( )
 	{
+		if ( isPlaneWiseApplicable() )
+			return projectPlaneWise( MINIMUM );
+
 		final Cursor< T > outputCursor = Views.iterable( output ).localizingCursor();
 
 		while ( outputCursor.hasNext() )
@@ -134,6 +255,251 @@ public class Projection< T extends RealType< T > & NativeType< T > >
 		return output;
 	}
 
+	private boolean isPlaneWiseApplicable()
+	{
+		return planeWise
+				&& input.numDimensions() == 3
+				&& projectionDimension == 2
+				&& input.dimension( 0 ) * input.dimension( 1 ) < Integer.MAX_VALUE;
+	}
+
+	private RandomAccessibleInterval< T > projectPlaneWise( String mode )
+	{
+		final int width = ( int ) input.dimension( 0 );
+		final int height = ( int ) input.dimension( 1 );
+		final float[] accumulator = new float[ width * height ];
+
+		final int operation;
+		if ( MAXIMUM.equals( mode ) )
+		{
+			operation = MAX;
+			Arrays.fill( accumulator, - Float.MAX_VALUE );
+		}
+		else if ( MINIMUM.equals( mode ) )
+		{
+			operation = MIN;
+			Arrays.fill( accumulator, Float.MAX_VALUE );
+		}
+		else
+		{
+			operation = ADD;
+		}
+
+		final long zMin = projectionInterval.min( 0 );
+		final long zMax = projectionInterval.max( 0 );
+
+		Utils.parallelize( height, numThreads, service, ( from, to ) ->
+		{
+			for ( long z = zMin; z <= zMax; z++ )
+				accumulateRows( z, from, to, width, accumulator, operation );
+		} );
+
+		if ( AVERAGE.equals( mode ) )
+		{
+			final float count = zMax - zMin + 1;
+			for ( int i = 0; i < accumulator.length; i++ )
+				accumulator[ i ] /= count;
+		}
+
+		final Cursor< T > outputCursor = Views.flatIterable( output ).cursor();
+		int i = 0;
+		while ( outputCursor.hasNext() )
+			outputCursor.next().setReal( accumulator[ i++ ] );
+
+		return output;
+	}
+
+	private static final int ADD = 0;
+	private static final int MAX = 1;
+	private static final int MIN = 2;
+
+	private static void accumulate( float[] accumulator, int i, float value, int operation )
+	{
+		if ( operation == ADD )
+			accumulator[ i ] += value;
+		else if ( operation == MAX )
+		{
+			if ( value > accumulator[ i ] ) accumulator[ i ] = value;
+		}
+		else if ( value < accumulator[ i ] ) accumulator[ i ] = value;
+	}
+
+	private void accumulateRows( long z, int from, int to, int width, float[] accumulator, int operation )
+	{
+		final Cursor< T > cursor = Views.flatIterable( Views.interval( input,
+				new long[]{ input.min( 0 ), input.min( 1 ) + from, z },
+				new long[]{ input.max( 0 ), input.min( 1 ) + to - 1, z } ) ).cursor();
+
+		int i = from * width;
+		while ( cursor.hasNext() )
+			accumulate( accumulator, i++, cursor.next().getRealFloat(), operation );
+	}
+
+	/**
+	 * Computes the (lower) median along z, i.e. the value of rank ( n - 1 ) / 2,
+	 * for n values.
+	 *
+	 * Each thread processes whole output rows: the row is read from all z planes
+	 * into a reused buffer and the median of each pixel is selected from a reused
+	 * per pixel buffer, either by a histogram (8-bit data or approximate mode)
+	 * or by quickselect.
+	 */
+	private RandomAccessibleInterval< T > medianPlaneWise()
+	{
+		final int width = ( int ) input.dimension( 0 );
+		final int height = ( int ) input.dimension( 1 );
+		final long zMin = projectionInterval.min( 0 );
+		final int n = ( int ) ( projectionInterval.max( 0 ) - zMin + 1 );
+		final int rank = ( n - 1 ) / 2;
+
+		final boolean isUnsignedByte = Util.getTypeFromInterval( input ) instanceof UnsignedByteType;
+		final boolean isApproximate = medianNumBins > 0;
+		final double[] valueRange = isApproximate ? getValueRange() : new double[]{ 0, 256 };
+		final int numBins = isApproximate ? medianNumBins : 256;
+		final double binWidth = Math.max( ( valueRange[ 1 ] - valueRange[ 0 ] ) / numBins, Double.MIN_NORMAL );
+
+		final float[] medians = new float[ width * height ];
+
+		Utils.parallelize( height, numThreads, service, ( from, to ) ->
+		{
+			final float[] rowValues = new float[ n * width ];
+			final float[] pixelValues = new float[ n ];
+			final int[] histogram = new int[ numBins ];
+
+			for ( int y = from; y < to; y++ )
+			{
+				for ( int z = 0; z < n; z++ )
+					readRow( zMin + z, y, width, rowValues, z * width );
+
+				for ( int x = 0; x < width; x++ )
+				{
+					for ( int z = 0; z < n; z++ )
+						pixelValues[ z ] = rowValues[ z * width + x ];
+
+					final float median;
+					if ( isApproximate || isUnsignedByte )
+						median = selectByHistogram( pixelValues, rank, histogram, valueRange[ 0 ], binWidth, ! isApproximate );
+					else
+						median = select( pixelValues, rank );
+
+					medians[ y * width + x ] = median;
+				}
+			}
+		} );
+
+		final Cursor< T > outputCursor = Views.flatIterable( output ).cursor();
+		int i = 0;
+		while ( outputCursor.hasNext() )
+			outputCursor.next().setReal( medians[ i++ ] );
+
+		return output;
+	}
+
+	/**
+	 * @return { min, max } of the input within the projection interval
+	 */
+	private double[] getValueRange()
+	{
+		final long[] min = Intervals.minAsLongArray( input );
+		final long[] max = Intervals.maxAsLongArray( input );
+		min[ projectionDimension ] = projectionInterval.min( 0 );
+		max[ projectionDimension ] = projectionInterval.max( 0 );
+
+		double minValue = Double.MAX_VALUE;
+		double maxValue = - Double.MAX_VALUE;
+		for ( T value : Views.interval( input, min, max ) )
+		{
+			final double realValue = value.getRealDouble();
+			if ( realValue < minValue ) minValue = realValue;
+			if ( realValue > maxValue ) maxValue = realValue;
+		}
+
+		return new double[]{ minValue, maxValue };
+	}
+
+	/**
+	 * Selects the value of the given rank using a histogram, which must be all zeros,
+	 * and is all zeros again upon return.
+	 *
+	 * @param exact if true, the values are integers in [ 0, histogram.length ),
+	 *                 binned with width 1, and the exact value is returned;
+	 *                 otherwise the center of the bin containing the rank is returned.
+	 */
+	private static float selectByHistogram(
+			float[] values,
+			int rank,
+			int[] histogram,
+			double min,
+			double binWidth,
+			boolean exact )
+	{
+		final int lastBin = histogram.length - 1;
+
+		for ( float value : values )
+			histogram[ Math.min( lastBin, Math.max( 0, ( int ) ( ( value - min ) / binWidth ) ) ) ]++;
+
+		int bin = 0;
+		int count = histogram[ 0 ];
+		while ( count <= rank )
+			count += histogram[ ++bin ];
+
+		for ( float value : values )
+			histogram[ Math.min( lastBin, Math.max( 0, ( int ) ( ( value - min ) / binWidth ) ) ) ] = 0;
+
+		if ( exact )
+			return ( float ) ( min + bin );
+		else
+			return ( float ) ( min + ( bin + 0.5 ) * binWidth );
+	}
+
+	/**
+	 * Quickselect: partially sorts values in place and returns the value of the given rank.
+	 */
+	private static float select( float[] values, int rank )
+	{
+		int left = 0;
+		int right = values.length - 1;
+
+		while ( right > left )
+		{
+			final float pivot = values[ ( left + right ) >>> 1 ];
+			int i = left;
+			int j = right;
+
+			while ( i <= j )
+			{
+				while ( values[ i ] < pivot ) i++;
+				while ( values[ j ] > pivot ) j--;
+				if ( i <= j )
+				{
+					final float tmp = values[ i ];
+					values[ i++ ] = values[ j ];
+					values[ j-- ] = tmp;
+				}
+			}
+
+			if ( rank <= j )
+				right = j;
+			else if ( rank >= i )
+				left = i;
+			else
+				break;
+		}
+
+		return values[ rank ];
+	}
+
+	private void readRow( long z, int y, int width, float[] row, int rowOffset )
+	{
+		final Cursor< T > cursor = Views.flatIterable( Views.interval( input,
+				new long[]{ input.min( 0 ), input.min( 1 ) + y, z },
+				new long[]{ input.max( 0 ), input.min( 1 ) + y, z } ) ).cursor();
+
+		int x = rowOffset;
+		while ( cursor.hasNext() )
+			row[ x++ ] = cursor.next().getRealFloat();
+	}
+
 	private void initializeOutputArrayImg()
 	{
 		setOutputDimensions();
@@ -224,7 +590,7 @@ public class Projection< T extends RealType< T > & NativeType< T > >
 
 	private void setMaximumProjection( Cursor< T > outputCursor )
 	{
-		double maxValue = Double.MIN_VALUE;
+		double maxValue = - Double.MAX_VALUE;
 		double value;
 
 		for ( int i = (int) projectionInterval.min(0); i <= (int) projectionInterval.max(0 ); ++i )
@@ -238,6 +604,10 @@ public class Projection< T extends RealType< T > & NativeType< T > >
 	}
 
 
+	/**
+	 * @param values
+	 * @return the lower median, i.e. the value of rank ( n - 1 ) / 2 (sorts values in place)
+	 */
 	public double getMedian( double[] values) {
 
 		if ( values.length == 1 )
@@ -247,9 +617,7 @@ public class Projection< T extends RealType< T > & NativeType< T > >
 		else
 		{
 			Arrays.sort( values );
-			int middle = values.length / 2;
-			middle = middle % 2 == 0 ? middle - 1 : middle;
-			return values[ middle ];
+			return values[ ( values.length - 1 ) / 2 ];
 		}
 	}
 
@@ -0,0 +1,280 @@
+package de.embl.cba.templatematching.process;
+
+import de.embl.cba.templatematching.Utils;
+import de.embl.cba.templatematching.image.CalibratedRai;
+import de.embl.cba.templatematching.image.DefaultCalibratedRai;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.IFormatReader;
+import loci.formats.ImageReader;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Z-projection of a (tomogram) file, reading one z plane at a time
+ * with Bio-Formats and accumulating into a float image, optionally
+ * block averaging each plane.
+ *
+ * Memory consumption is one plane plus the (sub-sampled) accumulator,
+ * and the file is read sequentially.
+ */
+public class StreamingProjection
+{
+	private static final int SUM = 0;
+	private static final int MAXIMUM = 1;
+	private static final int MINIMUM = 2;
+
+	/**
+	 * @param file
+	 * @return a reader of the first series of the file, which must be closed by the caller
+	 */
+	public static IFormatReader openReader( File file ) throws IOException, FormatException
+	{
+		final IFormatReader reader = new ImageReader();
+
+		try
+		{
+			reader.setId( file.getAbsolutePath() );
+			reader.setSeries( 0 );
+		}
+		catch ( IOException | FormatException | RuntimeException e )
+		{
+			reader.close();
+			throw e;
+		}
+
+		return reader;
+	}
+
+	/**
+	 * @param mode
+	 * @param reader
+	 * @return true if the image of the reader can be projected with this mode, i.e.
+	 * the mode is not the median and the image is neither RGB nor of an unsupported pixel type
+	 */
+	public static boolean canStream( String mode, IFormatReader reader )
+	{
+		return ! Projection.MEDIAN.equals( mode )
+				&& reader.getRGBChannelCount() == 1
+				&& isSupported( reader.getPixelType() );
+	}
+
+	/**
+	 * @param file
+	 * @param nanometerCalibration of the file, { x, y, z }
+	 * @param subSampling in x and y
+	 * @param mode Projection.AVERAGE, SUM, MAXIMUM or MINIMUM
+	 * @param numSlices number of slices around the z center to project; 0 for all slices
+	 * @param blockAverage if true, each plane is block averaged by subSampling before
+	 *                     it is accumulated; otherwise only every subSampling-th pixel is accumulated
+	 * @return the 2D projection
+	 */
+	public static CalibratedRai< FloatType > project(
+			File file,
+			double[] nanometerCalibration,
+			long[] subSampling,
+			String mode,
+			int numSlices,
+			boolean blockAverage ) throws IOException, FormatException
+	{
+		final IFormatReader reader = openReader( file );
+
+		try
+		{
+			return project( reader, nanometerCalibration, subSampling, mode, numSlices, blockAverage );
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+
+	/**
+	 * As {@link #project(File, double[], long[], String, int, boolean)}, reading from
+	 * an open reader, for which {@link #canStream(String, IFormatReader)} must be true.
+	 */
+	public static CalibratedRai< FloatType > project(
+			IFormatReader reader,
+			double[] nanometerCalibration,
+			long[] subSampling,
+			String mode,
+			int numSlices,
+			boolean blockAverage ) throws IOException, FormatException
+	{
+		if ( ! canStream( mode, reader ) )
+			throw new IllegalArgumentException( "Cannot stream a " + mode.toLowerCase()
+					+ " projection of " + reader.getCurrentFile() + ", see canStream." );
+
+		final int width = reader.getSizeX();
+		final int height = reader.getSizeY();
+		final int stepX = ( int ) Math.max( 1, subSampling[ 0 ] );
+		final int stepY = ( int ) Math.max( 1, subSampling[ 1 ] );
+		final int outputWidth = ( width + stepX - 1 ) / stepX;
+		final int outputHeight = ( height + stepY - 1 ) / stepY;
+
+		final long[] range = Projection.getCentralRange( 0, reader.getSizeZ() - 1, numSlices );
+
+		Utils.log( "Computing streamed " + mode.toLowerCase() + " projection of "
+				+ new File( reader.getCurrentFile() ).getName() + ", z = " + range[ 0 ] + " ... " + range[ 1 ] );
+
+		final int accumulation = getAccumulation( mode );
+
+		final float[] accumulator = new float[ outputWidth * outputHeight ];
+		if ( accumulation == MAXIMUM )
+			Arrays.fill( accumulator, - Float.MAX_VALUE );
+		else if ( accumulation == MINIMUM )
+			Arrays.fill( accumulator, Float.MAX_VALUE );
+
+		final int pixelType = reader.getPixelType();
+		final int bytesPerPixel = FormatTools.getBytesPerPixel( pixelType );
+		final byte[] plane = new byte[ width * height * bytesPerPixel ];
+		final ByteBuffer buffer = ByteBuffer.wrap( plane ).order(
+				reader.isLittleEndian() ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN );
+
+		final float[] blockAverages = blockAverage ? new float[ outputWidth * outputHeight ] : null;
+		final int[] blockCounts = blockAverage ? getBlockCounts( width, height, stepX, stepY ) : null;
+
+		for ( long z = range[ 0 ]; z <= range[ 1 ]; z++ )
+		{
+			reader.openBytes( reader.getIndex( ( int ) z, 0, 0 ), plane );
+
+			if ( blockAverage )
+				computeBlockAverages( buffer, plane, pixelType, width, height, stepX, stepY, blockCounts, blockAverages );
+
+			for ( int y = 0, o = 0; y < height; y += stepY )
+			{
+				for ( int x = 0; x < width; x += stepX, o++ )
+				{
+					final float value = blockAverage ?
+							blockAverages[ o ] : getValue( buffer, plane, pixelType, y * width + x );
+
+					switch ( accumulation )
+					{
+						case MAXIMUM:
+							if ( value > accumulator[ o ] ) accumulator[ o ] = value;
+							break;
+						case MINIMUM:
+							if ( value < accumulator[ o ] ) accumulator[ o ] = value;
+							break;
+						default:
+							accumulator[ o ] += value;
+					}
+				}
+			}
+		}
+
+		if ( accumulation == SUM && ! Projection.SUM.equals( mode ) )
+		{
+			final float numPlanes = range[ 1 ] - range[ 0 ] + 1;
+			for ( int i = 0; i < accumulator.length; i++ )
+				accumulator[ i ] /= numPlanes;
+		}
+
+		final double[] calibration = new double[]{
+				nanometerCalibration[ 0 ] * stepX,
+				nanometerCalibration[ 1 ] * stepY,
+				nanometerCalibration[ 2 ] };
+
+		return new DefaultCalibratedRai<>(
+				ArrayImgs.floats( accumulator, outputWidth, outputHeight ),
+				calibration );
+	}
+
+	private static int getAccumulation( String mode )
+	{
+		switch ( mode )
+		{
+			case Projection.MAXIMUM: return MAXIMUM;
+			case Projection.MINIMUM: return MINIMUM;
+			default: return SUM; // also for the average, which is divided at the end
+		}
+	}
+
+	private static int[] getBlockCounts( int width, int height, int stepX, int stepY )
+	{
+		final int outputWidth = ( width + stepX - 1 ) / stepX;
+		final int outputHeight = ( height + stepY - 1 ) / stepY;
+		final int[] counts = new int[ outputWidth * outputHeight ];
+
+		for ( int y = 0; y < height; y++ )
+			for ( int x = 0; x < width; x++ )
+				counts[ ( y / stepY ) * outputWidth + x / stepX ]++;
+
+		return counts;
+	}
+
+	private static void computeBlockAverages(
+			ByteBuffer buffer,
+			byte[] plane,
+			int pixelType,
+			int width,
+			int height,
+			int stepX,
+			int stepY,
+			int[] counts,
+			float[] averages )
+	{
+		final int outputWidth = ( width + stepX - 1 ) / stepX;
+		Arrays.fill( averages, 0 );
+
+		for ( int y = 0; y < height; y++ )
+		{
+			final int row = ( y / stepY ) * outputWidth;
+			for ( int x = 0; x < width; x++ )
+				averages[ row + x / stepX ] += getValue( buffer, plane, pixelType, y * width + x );
+		}
+
+		for ( int i = 0; i < averages.length; i++ )
+			averages[ i ] /= counts[ i ];
+	}
+
+	private static boolean isSupported( int pixelType )
+	{
+		switch ( pixelType )
+		{
+			case FormatTools.INT8:
+			case FormatTools.UINT8:
+			case FormatTools.INT16:
+			case FormatTools.UINT16:
+			case FormatTools.INT32:
+			case FormatTools.UINT32:
+			case FormatTools.FLOAT:
+			case FormatTools.DOUBLE:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	private static float getValue( ByteBuffer buffer, byte[] plane, int pixelType, int index )
+	{
+		switch ( pixelType )
+		{
+			case FormatTools.INT8:
+				return plane[ index ];
+			case FormatTools.UINT8:
+				return plane[ index ] & 0xff;
+			case FormatTools.INT16:
+				return buffer.getShort( 2 * index );
+			case FormatTools.UINT16:
+				return buffer.getShort( 2 * index ) & 0xffff;
+			case FormatTools.INT32:
+				return buffer.getInt( 4 * index );
+			case FormatTools.UINT32:
+				return buffer.getInt( 4 * index ) & 0xffffffffL;
+			case FormatTools.FLOAT:
+				return buffer.getFloat( 4 * index );
+			case FormatTools.DOUBLE:
+				return ( float ) buffer.getDouble( 8 * index );
+			default:
+				throw new IllegalArgumentException( "Unsupported pixel type: "
+						+ FormatTools.getPixelTypeString( pixelType ) );
+		}
+	}
+}
@@ -0,0 +1,242 @@
+package de.embl.cba.templatematching.save;
+
+import bdv.export.ExportMipmapInfo;
+import bdv.export.ProgressWriterConsole;
+import bdv.export.ProposeMipmaps;
+import bdv.export.WriteSequenceToHdf5;
+import bdv.img.hdf5.Hdf5ImageLoader;
+import bdv.spimdata.SequenceDescriptionMinimal;
+import bdv.spimdata.SpimDataMinimal;
+import bdv.spimdata.XmlIoSpimDataMinimal;
+import de.embl.cba.templatematching.Utils;
+import mpicbg.spim.data.SpimDataException;
+import mpicbg.spim.data.generic.sequence.BasicImgLoader;
+import mpicbg.spim.data.generic.sequence.BasicSetupImgLoader;
+import mpicbg.spim.data.generic.sequence.ImgLoaderHint;
+import mpicbg.spim.data.registration.ViewRegistration;
+import mpicbg.spim.data.registration.ViewRegistrations;
+import mpicbg.spim.data.sequence.BasicViewSetup;
+import mpicbg.spim.data.sequence.Channel;
+import mpicbg.spim.data.sequence.FinalVoxelDimensions;
+import mpicbg.spim.data.sequence.TimePoint;
+import mpicbg.spim.data.sequence.TimePoints;
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.FinalDimensions;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converters;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.output.Format;
+import org.jdom2.output.XMLOutputter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Exports an XYZCT image as BigDataViewer HDF5, together with a BigDataViewer XML
+ * referencing it, with one setup per channel and one time point per frame.
+ *
+ * The cells of all resolution levels are computed by numThreads threads in parallel,
+ * while one thread writes them into the HDF5 file. Images in memory are downsampled
+ * from full resolution; for lazily loaded images, each level is downsampled from the
+ * previous level, as read back from the HDF5 file, such that the input is read only once.
+ *
+ * BigDataViewer HDF5 stores uint16. uint8 and uint16 images are stored as they are.
+ * For all other types, the value range [ min, max ] of the image is mapped linearly
+ * to [ 0, 65535 ], which takes an extra pass over the image, and recorded in the XML
+ * as &lt;ValueMapping&gt;, such that value = min + stored * ( max - min ) / 65535.
+ * To keep the values of such types, export as N5, see {@link N5Export}.
+ */
+public class Hdf5Export< T extends RealType< T > & NativeType< T > >
+{
+	public static final int MAX_UINT16 = 65535;
+	public static final String VALUE_MAPPING = "ValueMapping";
+
+	private final int numThreads;
+
+	public Hdf5Export( int numThreads )
+	{
+		this.numThreads = Math.max( 1, numThreads );
+	}
+
+	/**
+	 * Writes path.h5 and path.xml.
+	 *
+	 * @param rai XYZCT
+	 * @param name
+	 * @param path without extension
+	 * @param calibration { x, y, z }
+	 * @param unit
+	 * @param translation { x, y, z }, in calibrated units
+	 * @param isInMemory if false, the lower resolution levels are computed from the written levels
+	 */
+	public void export(
+			RandomAccessibleInterval< T > rai,
+			String name,
+			String path,
+			double[] calibration,
+			String unit,
+			double[] translation,
+			boolean isInMemory ) throws IOException
+	{
+		final File hdf5File = new File( path + ".h5" );
+		final File xmlFile = new File( path + ".xml" );
+		final int numChannels = ( int ) rai.dimension( 3 );
+		final int numTimepoints = ( int ) rai.dimension( 4 );
+
+		final double[] valueRange = isUnsignedShortRange( Util.getTypeFromInterval( rai ) ) ? null : getValueRange( rai );
+		if ( valueRange != null )
+			Utils.log( "Mapping the values of " + name + " from [ " + valueRange[ 0 ] + ", " + valueRange[ 1 ]
+					+ " ] to [ 0, " + MAX_UINT16 + " ] for BigDataViewer HDF5; the range is recorded in "
+					+ xmlFile.getName() + ", export as N5 to keep the values." );
+
+		final HashMap< Integer, BasicViewSetup > setups = new HashMap<>();
+		final HashMap< Integer, ExportMipmapInfo > mipmapInfos = new HashMap<>();
+		for ( int c = 0; c < numChannels; c++ )
+		{
+			final BasicViewSetup setup = new BasicViewSetup(
+					c,
+					name + "-channel" + c,
+					new FinalDimensions( rai.dimension( 0 ), rai.dimension( 1 ), rai.dimension( 2 ) ),
+					new FinalVoxelDimensions( unit, calibration ) );
+			setup.setAttribute( new Channel( c ) );
+			setups.put( c, setup );
+			mipmapInfos.put( c, ProposeMipmaps.proposeMipmaps( setup ) );
+		}
+
+		final ArrayList< TimePoint > timepoints = new ArrayList<>();
+		for ( int t = 0; t < numTimepoints; t++ )
+			timepoints.add( new TimePoint( t ) );
+
+		final BasicImgLoader imgLoader = setupId -> new BasicSetupImgLoader< UnsignedShortType >()
+		{
+			@Override
+			public RandomAccessibleInterval< UnsignedShortType > getImage( int timepointId, ImgLoaderHint... hints )
+			{
+				return asUnsignedShorts( getVolume( rai, setupId, timepointId ), valueRange );
+			}
+
+			@Override
+			public UnsignedShortType getImageType()
+			{
+				return new UnsignedShortType();
+			}
+		};
+
+		final SequenceDescriptionMinimal sequence =
+				new SequenceDescriptionMinimal( new TimePoints( timepoints ), setups, imgLoader, null );
+
+		final WriteSequenceToHdf5.LoopbackHeuristic loopbackHeuristic = isInMemory ? null :
+				( originalImg, factorsToOriginalImg, previousLevel, factorsToPreviousLevel, chunkSize ) -> previousLevel >= 0;
+
+		WriteSequenceToHdf5.writeHdf5File(
+				sequence,
+				mipmapInfos,
+				true,
+				hdf5File,
+				loopbackHeuristic,
+				null,
+				numThreads,
+				new ProgressWriterConsole() );
+
+		final AffineTransform3D transform = new AffineTransform3D();
+		transform.set(
+				calibration[ 0 ], 0, 0, translation[ 0 ],
+				0, calibration[ 1 ], 0, translation[ 1 ],
+				0, 0, calibration[ 2 ], translation[ 2 ] );
+
+		final HashMap< ViewId, ViewRegistration > registrations = new HashMap<>();
+		for ( int t = 0; t < numTimepoints; t++ )
+			for ( int c = 0; c < numChannels; c++ )
+				registrations.put( new ViewId( t, c ), new ViewRegistration( t, c, transform.copy() ) );
+
+		sequence.setImgLoader( new Hdf5ImageLoader( hdf5File, null, sequence, false ) );
+
+		try
+		{
+			final SpimDataMinimal spimData =
+					new SpimDataMinimal( xmlFile.getParentFile(), sequence, new ViewRegistrations( registrations ) );
+
+			if ( valueRange == null )
+			{
+				new XmlIoSpimDataMinimal().save( spimData, xmlFile.getAbsolutePath() );
+				return;
+			}
+
+			final Element root = new XmlIoSpimDataMinimal().toXml( spimData, xmlFile.getParentFile() );
+			root.addContent( new Element( VALUE_MAPPING )
+					.addContent( new Element( "min" ).setText( Double.toString( valueRange[ 0 ] ) ) )
+					.addContent( new Element( "max" ).setText( Double.toString( valueRange[ 1 ] ) ) ) );
+
+			try ( OutputStream stream = new FileOutputStream( xmlFile ) )
+			{
+				new XMLOutputter( Format.getPrettyFormat() ).output( new Document( root ), stream );
+			}
+		}
+		catch ( SpimDataException e )
+		{
+			throw new IOException( "Could not write " + xmlFile, e );
+		}
+	}
+
+	private static boolean isUnsignedShortRange( RealType< ? > type )
+	{
+		return type instanceof UnsignedShortType || type instanceof UnsignedByteType;
+	}
+
+	/**
+	 * @return { min, max } of all values
+	 */
+	private static < T extends RealType< T > > double[] getValueRange( RandomAccessibleInterval< T > rai )
+	{
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		for ( T value : Views.flatIterable( rai ) )
+		{
+			final double real = value.getRealDouble();
+			if ( real < min ) min = real;
+			if ( real > max ) max = real;
+		}
+		return new double[]{ min, max };
+	}
+
+	private static < T > RandomAccessibleInterval< T > getVolume( RandomAccessibleInterval< T > rai, int channel, int timepoint )
+	{
+		return Views.zeroMin( Views.hyperSlice(
+				Views.hyperSlice( rai, 4, rai.min( 4 ) + timepoint ), 3, rai.min( 3 ) + channel ) );
+	}
+
+	/**
+	 * @param valueRange { min, max }, mapped linearly to [ 0, MAX_UINT16 ];
+	 *                   null for uint8 and uint16, of which the values are kept
+	 */
+	private static < T extends RealType< T > >
+	RandomAccessibleInterval< UnsignedShortType > asUnsignedShorts( RandomAccessibleInterval< T > rai, double[] valueRange )
+	{
+		if ( valueRange == null )
+			return Converters.convert(
+					rai,
+					( T input, UnsignedShortType output ) -> output.set( ( int ) input.getRealDouble() ),
+					new UnsignedShortType() );
+
+		final double min = valueRange[ 0 ];
+		final double scale = valueRange[ 1 ] > min ? MAX_UINT16 / ( valueRange[ 1 ] - min ) : 0;
+
+		return Converters.convert(
+				rai,
+				( T input, UnsignedShortType output ) ->
+						output.set( ( int ) Math.round( ( input.getRealDouble() - min ) * scale ) ),
+				new UnsignedShortType() );
+	}
+}
@@ -0,0 +1,124 @@
+package de.embl.cba.templatematching.save;
+
+import de.embl.cba.templatematching.Utils;
+import net.imglib2.realtransform.AffineTransform3D;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * BigDataViewer XML which, instead of a copy of the voxels, references the input
+ * file, to be opened lazily with Bio-Formats, and places it with the registration
+ * of the match (calibration, rotation and matched position).
+ *
+ * BigDataViewer has no image loader for such files, thus they are opened by
+ * the MatchedTemplatesBrowser itself.
+ */
+public class InputFileReference
+{
+	public static final String FORMAT = "templatematching.inputfile";
+
+	public final File file;
+	public final String name;
+	public final AffineTransform3D transform;
+	public final boolean isMultiChannel;
+
+	public InputFileReference( File file, String name, AffineTransform3D transform, boolean isMultiChannel )
+	{
+		this.file = file;
+		this.name = name;
+		this.transform = transform;
+		this.isMultiChannel = isMultiChannel;
+	}
+
+	/**
+	 * @param xml
+	 * @return true if the xml references an input file
+	 */
+	public static boolean isReference( File xml )
+	{
+		try
+		{
+			final String content = new String( Files.readAllBytes( xml.toPath() ), StandardCharsets.UTF_8 );
+			return content.contains( "format=\"" + FORMAT + "\"" );
+		}
+		catch ( IOException e )
+		{
+			return false;
+		}
+	}
+
+	public void write( File xml ) throws IOException
+	{
+		final double[] matrix = transform.getRowPackedCopy();
+		final StringBuilder affine = new StringBuilder();
+		for ( int i = 0; i < 12; i++ )
+			affine.append( i == 0 ? "" : " " ).append( matrix[ i ] );
+
+		final String content = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+				+ "<SpimData version=\"0.2\">\n"
+				+ "  <BasePath type=\"relative\">.</BasePath>\n"
+				+ "  <SequenceDescription>\n"
+				+ "    <ImageLoader format=\"" + FORMAT + "\">\n"
+				+ "      <file type=\"absolute\">" + Utils.escapeXml( file.getAbsolutePath() ) + "</file>\n"
+				+ "      <multiChannel>" + isMultiChannel + "</multiChannel>\n"
+				+ "    </ImageLoader>\n"
+				+ "    <ViewSetups>\n"
+				+ "      <ViewSetup>\n"
+				+ "        <id>0</id>\n"
+				+ "        <name>" + Utils.escapeXml( name ) + "</name>\n"
+				+ "      </ViewSetup>\n"
+				+ "    </ViewSetups>\n"
+				+ "    <Timepoints type=\"pattern\">\n"
+				+ "      <integerpattern>0</integerpattern>\n"
+				+ "    </Timepoints>\n"
+				+ "  </SequenceDescription>\n"
+				+ "  <ViewRegistrations>\n"
+				+ "    <ViewRegistration timepoint=\"0\" setup=\"0\">\n"
+				+ "      <ViewTransform type=\"affine\">\n"
+				+ "        <affine>" + affine + "</affine>\n"
+				+ "      </ViewTransform>\n"
+				+ "    </ViewRegistration>\n"
+				+ "  </ViewRegistrations>\n"
+				+ "</SpimData>\n";
+
+		Files.write( xml.toPath(), content.getBytes( StandardCharsets.UTF_8 ) );
+	}
+
+	public static InputFileReference read( File xml ) throws IOException
+	{
+		final Document document;
+		try
+		{
+			document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse( xml );
+		}
+		catch ( Exception e )
+		{
+			throw new IOException( "Could not read " + xml, e );
+		}
+
+		final String[] values = getText( document, "affine" ).trim().split( "\\s+" );
+		final double[] matrix = new double[ 12 ];
+		for ( int i = 0; i < 12; i++ )
+			matrix[ i ] = Double.parseDouble( values[ i ] );
+
+		final AffineTransform3D transform = new AffineTransform3D();
+		transform.set( matrix );
+
+		return new InputFileReference(
+				new File( getText( document, "file" ).trim() ),
+				getText( document, "name" ).trim(),
+				transform,
+				Boolean.parseBoolean( getText( document, "multiChannel" ).trim() ) );
+	}
+
+	private static String getText( Document document, String tag )
+	{
+		return ( ( Element ) document.getElementsByTagName( tag ).item( 0 ) ).getTextContent();
+	}
+}
@@ -0,0 +1,403 @@
+package de.embl.cba.templatematching.save;
+
+import bdv.spimdata.SequenceDescriptionMinimal;
+import bdv.spimdata.SpimDataMinimal;
+import bdv.spimdata.XmlIoSpimDataMinimal;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.embl.cba.templatematching.Utils;
+import de.embl.cba.templatematching.image.CalibratedRai;
+import de.embl.cba.templatematching.image.DefaultCalibratedRai;
+import de.embl.cba.templatematching.process.Processor;
+import mpicbg.spim.data.SpimDataException;
+import mpicbg.spim.data.XmlHelpers;
+import mpicbg.spim.data.XmlKeys;
+import mpicbg.spim.data.registration.ViewRegistration;
+import mpicbg.spim.data.registration.ViewRegistrations;
+import mpicbg.spim.data.sequence.BasicViewSetup;
+import mpicbg.spim.data.sequence.Channel;
+import mpicbg.spim.data.sequence.FinalVoxelDimensions;
+import mpicbg.spim.data.sequence.TimePoint;
+import mpicbg.spim.data.sequence.TimePoints;
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.Cursor;
+import net.imglib2.FinalDimensions;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.output.Format;
+import org.jdom2.output.XMLOutputter;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Exports an XYZCT image as multi-resolution N5, in the layout of the
+ * BigDataViewer N5 image loader ( setup{c}/timepoint{t}/s{level} ), together
+ * with a BigDataViewer XML referencing it, with one setup per channel and one
+ * time point per frame.
+ *
+ * Each block is gzip compressed into its own file, such that the blocks of a
+ * resolution level are written by numThreads threads in parallel. The lower
+ * resolution levels are block averaged from the previous level, also in parallel;
+ * for lazily loaded images from the previous level as read back from disk, such
+ * that the input is read only once.
+ *
+ * uint8, uint16 and int16 images are stored as they are, all other types as float32.
+ */
+public class N5Export< T extends RealType< T > & NativeType< T > >
+{
+	public static final String N5_VERSION = "2.0.0";
+	public static final int[] BLOCK_SIZE = new int[]{ 128, 128, 32 };
+
+	public static final String UINT8 = "uint8";
+	public static final String UINT16 = "uint16";
+	public static final String INT16 = "int16";
+	public static final String FLOAT32 = "float32";
+
+	private final int numThreads;
+	private final ExecutorService service;
+
+	/**
+	 * @param numThreads
+	 * @param service runs the blocks of numThreads - 1 threads, the calling thread takes part;
+	 *                may be shared, see Utils.parallelize; null for the calling thread only
+	 */
+	public N5Export( int numThreads, ExecutorService service )
+	{
+		this.numThreads = Math.max( 1, numThreads );
+		this.service = service;
+	}
+
+	/**
+	 * Writes path.n5 and path.xml.
+	 *
+	 * @param rai XYZCT
+	 * @param name
+	 * @param path without extension
+	 * @param calibration { x, y, z }
+	 * @param unit
+	 * @param translation { x, y, z }, in calibrated units
+	 * @param isInMemory if false, the lower resolution levels are computed from the written levels
+	 */
+	public void export(
+			RandomAccessibleInterval< T > rai,
+			String name,
+			String path,
+			double[] calibration,
+			String unit,
+			double[] translation,
+			boolean isInMemory ) throws IOException
+	{
+		final File n5 = new File( path + ".n5" );
+		final String dataType = getDataType( Util.getTypeFromInterval( rai ) );
+		final int numChannels = ( int ) rai.dimension( 3 );
+		final int numTimepoints = ( int ) rai.dimension( 4 );
+
+		final Map< String, Object > rootAttributes = new LinkedHashMap<>();
+		rootAttributes.put( "n5", N5_VERSION );
+		writeAttributes( n5, rootAttributes );
+
+		final ArrayList< long[] > dimensions = new ArrayList<>();
+
+		for ( int c = 0; c < numChannels; c++ )
+		{
+			List< long[] > downsamplingFactors = null;
+			for ( int t = 0; t < numTimepoints; t++ )
+			{
+				final RandomAccessibleInterval< T > volume = Views.zeroMin(
+						Views.hyperSlice( Views.hyperSlice( rai, 4, rai.min( 4 ) + t ), 3, rai.min( 3 ) + c ) );
+
+				if ( t == 0 )
+					dimensions.add( Intervals.dimensionsAsLongArray( volume ) );
+
+				downsamplingFactors = writeLevels( n5, c, t, volume, dataType, isInMemory );
+			}
+
+			final Map< String, Object > setupAttributes = new LinkedHashMap<>();
+			setupAttributes.put( "downsamplingFactors", downsamplingFactors );
+			setupAttributes.put( "dataType", dataType );
+			writeAttributes( new File( n5, getSetupPath( c ) ), setupAttributes );
+		}
+
+		writeXml( new File( path + ".xml" ), n5, name, dimensions, numTimepoints, calibration, unit, translation );
+	}
+
+	public static String getSetupPath( int setup )
+	{
+		return "setup" + setup;
+	}
+
+	public static String getTimepointPath( int setup, int timepoint )
+	{
+		return getSetupPath( setup ) + File.separator + "timepoint" + timepoint;
+	}
+
+	public static String getDatasetPath( int setup, int timepoint, int level )
+	{
+		return getTimepointPath( setup, timepoint ) + File.separator + "s" + level;
+	}
+
+	public static String getBlockPath( long[] gridPosition )
+	{
+		return gridPosition[ 0 ] + File.separator + gridPosition[ 1 ] + File.separator + gridPosition[ 2 ];
+	}
+
+	public static int getBytesPerValue( String dataType )
+	{
+		switch ( dataType )
+		{
+			case UINT8: return 1;
+			case UINT16:
+			case INT16: return 2;
+			default: return 4;
+		}
+	}
+
+	private static String getDataType( RealType< ? > type )
+	{
+		if ( type instanceof UnsignedByteType ) return UINT8;
+		if ( type instanceof UnsignedShortType ) return UINT16;
+		if ( type instanceof ShortType ) return INT16;
+		return FLOAT32;
+	}
+
+	/**
+	 * Writes full resolution and then 2 x 2 (x 2) block averaged levels,
+	 * until the xy size fits into one block.
+	 *
+	 * @return downsampling factors of the levels, relative to full resolution
+	 */
+	private List< long[] > writeLevels(
+			File n5,
+			int setup,
+			int timepoint,
+			RandomAccessibleInterval< T > volume,
+			String dataType,
+			boolean isInMemory ) throws IOException
+	{
+		final List< long[] > downsamplingFactors = new ArrayList<>();
+		long[] factors = new long[]{ 1, 1, 1 };
+		CalibratedRai< T > level = new DefaultCalibratedRai<>( volume, new double[]{ 1, 1, 1 } );
+
+		for ( int l = 0; ; l++ )
+		{
+			final File dataset = new File( n5, getDatasetPath( setup, timepoint, l ) );
+			writeDataset( dataset, level.rai(), dataType );
+			downsamplingFactors.add( factors );
+
+			if ( level.rai().dimension( 0 ) <= BLOCK_SIZE[ 0 ] && level.rai().dimension( 1 ) <= BLOCK_SIZE[ 1 ] )
+				break;
+
+			if ( ! isInMemory && l == 0 )
+				level = new DefaultCalibratedRai<>(
+						N5Import.openDataset( dataset, dataType, Util.getTypeFromInterval( volume ).createVariable() ),
+						new double[]{ 1, 1, 1 } );
+
+			final long[] levelFactors = new long[]{ 2, 2, level.rai().dimension( 2 ) > 1 ? 2 : 1 };
+			factors = new long[]{ factors[ 0 ] * 2, factors[ 1 ] * 2, factors[ 2 ] * levelFactors[ 2 ] };
+			level = Processor.blockAverage( level, levelFactors, numThreads, service );
+		}
+
+		return downsamplingFactors;
+	}
+
+	private void writeDataset( File dataset, RandomAccessibleInterval< T > rai, String dataType ) throws IOException
+	{
+		final long[] dimensions = Intervals.dimensionsAsLongArray( rai );
+
+		final Map< String, Object > compression = new LinkedHashMap<>();
+		compression.put( "type", "gzip" );
+		compression.put( "level", -1 );
+
+		final Map< String, Object > attributes = new LinkedHashMap<>();
+		attributes.put( "dimensions", dimensions );
+		attributes.put( "blockSize", BLOCK_SIZE );
+		attributes.put( "dataType", dataType );
+		attributes.put( "compression", compression );
+		writeAttributes( dataset, attributes );
+
+		final long[] gridSize = new long[ 3 ];
+		long numBlocks = 1;
+		for ( int d = 0; d < 3; d++ )
+		{
+			gridSize[ d ] = ( dimensions[ d ] + BLOCK_SIZE[ d ] - 1 ) / BLOCK_SIZE[ d ];
+			numBlocks *= gridSize[ d ];
+		}
+
+		try
+		{
+			Utils.parallelize( ( int ) numBlocks, numThreads, service, ( from, to ) ->
+			{
+				for ( int i = from; i < to; i++ )
+				{
+					final long[] gridPosition = new long[]{
+							i % gridSize[ 0 ],
+							( i / gridSize[ 0 ] ) % gridSize[ 1 ],
+							i / ( gridSize[ 0 ] * gridSize[ 1 ] ) };
+
+					try
+					{
+						writeBlock( dataset, rai, gridPosition, dataType );
+					}
+					catch ( IOException e )
+					{
+						throw new UncheckedIOException( e );
+					}
+				}
+			} );
+		}
+		catch ( RuntimeException e )
+		{
+			throw new IOException( "Could not write " + dataset, e );
+		}
+	}
+
+	/**
+	 * N5 block: big endian header ( mode, number of dimensions, block size )
+	 * followed by the gzip compressed big endian values.
+	 */
+	private static < T extends RealType< T > > void writeBlock(
+			File dataset, RandomAccessibleInterval< T > rai, long[] gridPosition, String dataType ) throws IOException
+	{
+		final long[] min = new long[ 3 ];
+		final long[] max = new long[ 3 ];
+		final int[] size = new int[ 3 ];
+		int numValues = 1;
+		for ( int d = 0; d < 3; d++ )
+		{
+			min[ d ] = rai.min( d ) + gridPosition[ d ] * BLOCK_SIZE[ d ];
+			max[ d ] = Math.min( rai.max( d ), min[ d ] + BLOCK_SIZE[ d ] - 1 );
+			size[ d ] = ( int ) ( max[ d ] - min[ d ] + 1 );
+			numValues *= size[ d ];
+		}
+
+		final ByteBuffer buffer = ByteBuffer.allocate( numValues * getBytesPerValue( dataType ) );
+		final Cursor< T > cursor = Views.flatIterable( Views.interval( rai, min, max ) ).cursor();
+		switch ( dataType )
+		{
+			case UINT8:
+				while ( cursor.hasNext() ) buffer.put( ( byte ) ( int ) cursor.next().getRealDouble() );
+				break;
+			case UINT16:
+			case INT16:
+				while ( cursor.hasNext() ) buffer.putShort( ( short ) ( int ) cursor.next().getRealDouble() );
+				break;
+			default:
+				while ( cursor.hasNext() ) buffer.putFloat( cursor.next().getRealFloat() );
+		}
+
+		final File file = new File( dataset, getBlockPath( gridPosition ) );
+		file.getParentFile().mkdirs(); // may be created concurrently by another thread
+
+		try ( DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream( new FileOutputStream( file ) ) ) )
+		{
+			out.writeShort( 0 ); // default mode
+			out.writeShort( 3 );
+			for ( int d = 0; d < 3; d++ )
+				out.writeInt( size[ d ] );
+
+			final GZIPOutputStream gzip = new GZIPOutputStream( out );
+			gzip.write( buffer.array() );
+			gzip.finish();
+		}
+	}
+
+	private static void writeAttributes( File group, Map< String, Object > attributes ) throws IOException
+	{
+		if ( ! group.isDirectory() && ! group.mkdirs() )
+			throw new IOException( "Could not create " + group );
+
+		new ObjectMapper().writeValue( new File( group, "attributes.json" ), attributes );
+	}
+
+	/**
+	 * The BigDataViewer XML is built with XmlIoSpimDataMinimal, without an image loader,
+	 * which is added as an element, such that the installed BigDataViewer version
+	 * needs no N5 image loader for writing.
+	 */
+	private static void writeXml(
+			File xml,
+			File n5,
+			String name,
+			List< long[] > dimensions,
+			int numTimepoints,
+			double[] calibration,
+			String unit,
+			double[] translation ) throws IOException
+	{
+		final HashMap< Integer, BasicViewSetup > setups = new HashMap<>();
+		for ( int c = 0; c < dimensions.size(); c++ )
+		{
+			final BasicViewSetup setup = new BasicViewSetup(
+					c,
+					name + "-channel" + c,
+					new FinalDimensions( dimensions.get( c ) ),
+					new FinalVoxelDimensions( unit, calibration ) );
+			setup.setAttribute( new Channel( c ) );
+			setups.put( c, setup );
+		}
+
+		final ArrayList< TimePoint > timepoints = new ArrayList<>();
+		for ( int t = 0; t < numTimepoints; t++ )
+			timepoints.add( new TimePoint( t ) );
+
+		final AffineTransform3D transform = new AffineTransform3D();
+		transform.set(
+				calibration[ 0 ], 0, 0, translation[ 0 ],
+				0, calibration[ 1 ], 0, translation[ 1 ],
+				0, 0, calibration[ 2 ], translation[ 2 ] );
+
+		final HashMap< ViewId, ViewRegistration > registrations = new HashMap<>();
+		for ( int t = 0; t < numTimepoints; t++ )
+			for ( int c = 0; c < dimensions.size(); c++ )
+				registrations.put( new ViewId( t, c ), new ViewRegistration( t, c, transform.copy() ) );
+
+		final SpimDataMinimal spimData = new SpimDataMinimal(
+				xml.getParentFile(),
+				new SequenceDescriptionMinimal( new TimePoints( timepoints ), setups, null, null ),
+				new ViewRegistrations( registrations ) );
+
+		try
+		{
+			final Element root = new XmlIoSpimDataMinimal().toXml( spimData, xml.getParentFile() );
+
+			final Element imageLoader = new Element( XmlKeys.IMGLOADER_TAG );
+			imageLoader.setAttribute( XmlKeys.IMGLOADER_FORMAT_ATTRIBUTE_NAME, N5Import.FORMAT );
+			imageLoader.setAttribute( "version", "1.0" );
+			imageLoader.addContent( XmlHelpers.pathElement( "n5", n5, xml.getParentFile() ) );
+			root.getChild( XmlKeys.SEQUENCEDESCRIPTION_TAG ).addContent( 0, imageLoader );
+
+			try ( OutputStream stream = new FileOutputStream( xml ) )
+			{
+				new XMLOutputter( Format.getPrettyFormat() ).output( new Document( root ), stream );
+			}
+		}
+		catch ( SpimDataException e )
+		{
+			throw new IOException( "Could not write " + xml, e );
+		}
+	}
+}
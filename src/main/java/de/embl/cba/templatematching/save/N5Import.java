@@ -0,0 +1,337 @@
+package de.embl.cba.templatematching.save;
+
+import bdv.util.AbstractSource;
+import bdv.viewer.Source;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import mpicbg.spim.data.sequence.FinalVoxelDimensions;
+import mpicbg.spim.data.sequence.VoxelDimensions;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
+import net.imglib2.cache.img.SingleCellArrayImg;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Opens the outputs of {@link N5Export} as lazily loaded, multi-resolution
+ * BigDataViewer sources, independent of the N5 support of the installed
+ * BigDataViewer version. Missing blocks are read as zeros.
+ */
+public class N5Import
+{
+	public static final String FORMAT = "bdv.n5";
+
+	/**
+	 * @param xml
+	 * @return true if the image loader of the xml is N5
+	 */
+	public static boolean isN5Export( File xml )
+	{
+		try
+		{
+			final NodeList loaders = readXml( xml ).getElementsByTagName( "ImageLoader" );
+			return loaders.getLength() > 0
+					&& FORMAT.equals( ( ( Element ) loaders.item( 0 ) ).getAttribute( "format" ) );
+		}
+		catch ( IOException e )
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * @param xml as written by {@link N5Export}
+	 * @return one source per channel
+	 */
+	public static List< Source< ? > > open( File xml ) throws IOException
+	{
+		final File n5 = getN5( xml );
+		final Element[] setups = readViewSetups( xml );
+		final Map< Integer, AffineTransform3D > transforms = readTransforms( xml );
+
+		final ArrayList< Source< ? > > sources = new ArrayList<>();
+		for ( int setup = 0; setup < setups.length; setup++ )
+		{
+			final JsonNode setupAttributes = readAttributes( new File( n5, N5Export.getSetupPath( setup ) ) );
+			final String dataType = setupAttributes.get( "dataType" ).asText();
+
+			switch ( dataType )
+			{
+				case N5Export.UINT8:
+					sources.add( openSource( n5, setup, setups[ setup ], setupAttributes, transforms.get( setup ), new UnsignedByteType() ) );
+					break;
+				case N5Export.UINT16:
+					sources.add( openSource( n5, setup, setups[ setup ], setupAttributes, transforms.get( setup ), new UnsignedShortType() ) );
+					break;
+				case N5Export.INT16:
+					sources.add( openSource( n5, setup, setups[ setup ], setupAttributes, transforms.get( setup ), new ShortType() ) );
+					break;
+				default:
+					sources.add( openSource( n5, setup, setups[ setup ], setupAttributes, transforms.get( setup ), new FloatType() ) );
+			}
+		}
+
+		return sources;
+	}
+
+	private static < T extends RealType< T > & NativeType< T > >
+	Source< T > openSource(
+			File n5,
+			int setup,
+			Element viewSetup,
+			JsonNode setupAttributes,
+			AffineTransform3D transform,
+			T type ) throws IOException
+	{
+		final String dataType = setupAttributes.get( "dataType" ).asText();
+		final JsonNode factors = setupAttributes.get( "downsamplingFactors" );
+
+		final ArrayList< double[] > scales = new ArrayList<>();
+		for ( int level = 0; level < factors.size(); level++ )
+		{
+			final double[] scale = new double[ 3 ];
+			for ( int d = 0; d < 3; d++ )
+				scale[ d ] = factors.get( level ).get( d ).asDouble();
+			scales.add( scale );
+		}
+
+		final ArrayList< List< RandomAccessibleInterval< T > > > timepoints = new ArrayList<>();
+		for ( int t = 0; new File( n5, N5Export.getTimepointPath( setup, t ) ).isDirectory(); t++ )
+		{
+			final ArrayList< RandomAccessibleInterval< T > > levels = new ArrayList<>();
+			for ( int level = 0; level < factors.size(); level++ )
+				levels.add( openDataset( new File( n5, N5Export.getDatasetPath( setup, t, level ) ), dataType, type ) );
+			timepoints.add( levels );
+		}
+
+		final String[] voxelSize = getText( viewSetup, "voxelSize", "size" ).trim().split( "\\s+" );
+
+		return new MipmapSource<>(
+				timepoints,
+				scales,
+				type,
+				new FinalVoxelDimensions(
+						getText( viewSetup, "voxelSize", "unit" ),
+						Double.parseDouble( voxelSize[ 0 ] ),
+						Double.parseDouble( voxelSize[ 1 ] ),
+						Double.parseDouble( voxelSize[ 2 ] ) ),
+				transform,
+				getText( viewSetup, "name" ) );
+	}
+
+	private static File getN5( File xml )
+	{
+		final String path = xml.getAbsolutePath();
+		return new File( path.substring( 0, path.length() - ".xml".length() ) + ".n5" );
+	}
+
+	static < T extends RealType< T > & NativeType< T > >
+	RandomAccessibleInterval< T > openDataset( File dataset, String dataType, T type ) throws IOException
+	{
+		final JsonNode attributes = readAttributes( dataset );
+
+		final long[] dimensions = new long[ 3 ];
+		final int[] blockSize = new int[ 3 ];
+		for ( int d = 0; d < 3; d++ )
+		{
+			dimensions[ d ] = attributes.get( "dimensions" ).get( d ).asLong();
+			blockSize[ d ] = attributes.get( "blockSize" ).get( d ).asInt();
+		}
+
+		final CellLoader< T > loader = cell -> readBlock( dataset, cell, blockSize, dataType );
+
+		return new ReadOnlyCachedCellImgFactory(
+				ReadOnlyCachedCellImgOptions.options().cellDimensions( blockSize ) )
+				.create( dimensions, type, loader );
+	}
+
+	private static < T extends RealType< T > & NativeType< T > >
+	void readBlock( File dataset, SingleCellArrayImg< T, ? > cell, int[] blockSize, String dataType ) throws IOException
+	{
+		final long[] gridPosition = new long[ 3 ];
+		for ( int d = 0; d < 3; d++ )
+			gridPosition[ d ] = cell.min( d ) / blockSize[ d ];
+
+		final File file = new File( dataset, N5Export.getBlockPath( gridPosition ) );
+		if ( ! file.exists() ) return;
+
+		final byte[] bytes = new byte[ ( int ) cell.size() * N5Export.getBytesPerValue( dataType ) ];
+
+		try ( DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) ) )
+		{
+			in.readShort(); // mode
+			final int numDimensions = in.readShort();
+			for ( int d = 0; d < numDimensions; d++ )
+				in.readInt(); // block size, equal to the cell size
+
+			new DataInputStream( new GZIPInputStream( in ) ).readFully( bytes );
+		}
+
+		final ByteBuffer buffer = ByteBuffer.wrap( bytes );
+		final Cursor< T > cursor = Views.flatIterable( cell ).cursor();
+		switch ( dataType )
+		{
+			case N5Export.UINT8:
+				while ( cursor.hasNext() ) cursor.next().setReal( buffer.get() & 0xff );
+				break;
+			case N5Export.UINT16:
+				while ( cursor.hasNext() ) cursor.next().setReal( buffer.getShort() & 0xffff );
+				break;
+			case N5Export.INT16:
+				while ( cursor.hasNext() ) cursor.next().setReal( buffer.getShort() );
+				break;
+			default:
+				while ( cursor.hasNext() ) cursor.next().setReal( buffer.getFloat() );
+		}
+	}
+
+	private static JsonNode readAttributes( File group ) throws IOException
+	{
+		return new ObjectMapper().readTree( new File( group, "attributes.json" ) );
+	}
+
+	private static Document readXml( File xml ) throws IOException
+	{
+		try
+		{
+			return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse( xml );
+		}
+		catch ( Exception e )
+		{
+			throw new IOException( "Could not read " + xml, e );
+		}
+	}
+
+	private static Element[] readViewSetups( File xml ) throws IOException
+	{
+		final NodeList nodes = readXml( xml ).getElementsByTagName( "ViewSetup" );
+		final Element[] setups = new Element[ nodes.getLength() ];
+		for ( int i = 0; i < setups.length; i++ )
+			setups[ i ] = ( Element ) nodes.item( i );
+		return setups;
+	}
+
+	/**
+	 * @return the transforms of time point 0, by setup; the same for all time points
+	 */
+	private static Map< Integer, AffineTransform3D > readTransforms( File xml ) throws IOException
+	{
+		final NodeList nodes = readXml( xml ).getElementsByTagName( "ViewRegistration" );
+		final HashMap< Integer, AffineTransform3D > transforms = new HashMap<>();
+		for ( int i = 0; i < nodes.getLength(); i++ )
+		{
+			final Element registration = ( Element ) nodes.item( i );
+			if ( Integer.parseInt( registration.getAttribute( "timepoint" ) ) != 0 ) continue;
+
+			final String[] values = getText( registration, "affine" ).trim().split( "\\s+" );
+			final double[] matrix = new double[ 12 ];
+			for ( int j = 0; j < 12; j++ )
+				matrix[ j ] = Double.parseDouble( values[ j ] );
+
+			final AffineTransform3D transform = new AffineTransform3D();
+			transform.set( matrix );
+			transforms.put( Integer.parseInt( registration.getAttribute( "setup" ) ), transform );
+		}
+		return transforms;
+	}
+
+	private static String getText( Element element, String... path )
+	{
+		Element child = element;
+		for ( String tag : path )
+			child = ( Element ) child.getElementsByTagName( tag ).item( 0 );
+		return child.getTextContent();
+	}
+
+	/**
+	 * Multi-resolution source of the levels of all time points of one setup; the transform
+	 * of each level includes its downsampling, with pixel centers as in BigDataViewer.
+	 */
+	private static class MipmapSource< T extends RealType< T > & NativeType< T > > extends AbstractSource< T >
+	{
+		private final List< List< RandomAccessibleInterval< T > > > timepoints;
+		private final List< AffineTransform3D > levelTransforms;
+		private final VoxelDimensions voxelDimensions;
+
+		MipmapSource(
+				List< List< RandomAccessibleInterval< T > > > timepoints,
+				List< double[] > scales,
+				T type,
+				VoxelDimensions voxelDimensions,
+				AffineTransform3D transform,
+				String name )
+		{
+			super( type, name );
+			this.timepoints = timepoints;
+			this.voxelDimensions = voxelDimensions;
+
+			levelTransforms = new ArrayList<>();
+			for ( double[] scale : scales )
+			{
+				final AffineTransform3D levelTransform = new AffineTransform3D();
+				for ( int d = 0; d < 3; d++ )
+				{
+					levelTransform.set( scale[ d ], d, d );
+					levelTransform.set( 0.5 * ( scale[ d ] - 1 ), d, 3 );
+				}
+				levelTransform.preConcatenate( transform );
+				levelTransforms.add( levelTransform );
+			}
+		}
+
+		@Override
+		public boolean isPresent( int t )
+		{
+			return t >= 0 && t < timepoints.size();
+		}
+
+		@Override
+		public RandomAccessibleInterval< T > getSource( int t, int level )
+		{
+			return timepoints.get( t ).get( level );
+		}
+
+		@Override
+		public void getSourceTransform( int t, int level, AffineTransform3D transform )
+		{
+			transform.set( levelTransforms.get( level ) );
+		}
+
+		@Override
+		public VoxelDimensions getVoxelDimensions()
+		{
+			return voxelDimensions;
+		}
+
+		@Override
+		public int getNumMipmapLevels()
+		{
+			return levelTransforms.size();
+		}
+	}
+}
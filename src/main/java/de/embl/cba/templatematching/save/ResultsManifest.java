@@ -0,0 +1,246 @@
+package de.embl.cba.templatematching.save;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.embl.cba.templatematching.Utils;
+import de.embl.cba.templatematching.match.MatchedTemplate;
+import de.embl.cba.templatematching.match.TemplatesMatchingSettings;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+/**
+ * Records, per template file, the state of its input, the settings and the
+ * result of matching and export, in manifest.json in the output directory.
+ *
+ * The manifest is rewritten after every change, via a temporary file which
+ * is then moved into place, such that a run which is killed leaves a consistent
+ * manifest. A subsequent run skips the templates which are up to date.
+ */
+public class ResultsManifest
+{
+	public static final String FILE_NAME = "manifest.json";
+
+	public static final String MATCHED = "matched";
+	public static final String EXPORTED = "exported";
+	public static final String FAILED = "failed";
+
+	/**
+	 * Settings which change the matched positions or scores; all others, e.g. the
+	 * threading, loading and tiling, do not. The export format is recorded per entry.
+	 */
+	public static final List< String > RESULT_SETTINGS = Arrays.asList(
+			"overviewImageFile",
+			"searchWindowsFile",
+			"overviewAngleDegrees",
+			"overviewInterpolation",
+			"rotationSearch",
+			"rotationSearchRangeDegrees",
+			"rotationSearchStepDegrees",
+			"scaleSearch",
+			"scaleSearchRange",
+			"scaleSearchStep",
+			"matchingPixelSpacingNanometer",
+			"isHierarchicalMatching",
+			"downsamplingMode",
+			"projectionMode",
+			"projectionNumSlices",
+			"medianNumBins",
+			"overviewNoiseLevel",
+			"overviewNoiseSeed",
+			"correlationEngine",
+			"ambiguousPeakRatio",
+			"numPyramidLevels",
+			"numPyramidCandidates" );
+
+	public static class Entry
+	{
+		public String file;
+		public long size;
+		public long lastModified;
+		public String settingsHash;
+		public double[] positionNanometer;
+		public double[] calibrationNanometer;
+		public long[] sizePixels;
+		public double score = Double.NaN;
+		public double secondPeakRatio = Double.NaN;
+		public double peakSharpness = Double.NaN;
+		public double angleDegrees = Double.NaN;
+		public double scale = 1.0;
+		public boolean isAmbiguous;
+		public String status;
+		public String exportFormat; // of the export, if exported
+	}
+
+	private final File manifestFile;
+	private final String settingsHash;
+	private final String exportFormat;
+	private final ObjectMapper mapper;
+	private final Map< String, Entry > entries;
+
+	public ResultsManifest( TemplatesMatchingSettings settings )
+	{
+		this.manifestFile = new File( settings.outputDirectory, FILE_NAME );
+		this.manifestFile.getParentFile().mkdirs();
+		this.mapper = new ObjectMapper();
+		this.settingsHash = getSettingsHash( settings );
+		this.exportFormat = settings.exportFormat;
+		this.entries = read();
+	}
+
+	/**
+	 * @param file
+	 * @param requireExport
+	 * @return true if the file was matched (and exported in the current format),
+	 * with the current settings, and has not been modified since
+	 */
+	public synchronized boolean isUpToDate( File file, boolean requireExport )
+	{
+		final Entry entry = entries.get( file.getAbsolutePath() );
+
+		if ( entry == null ) return false;
+
+		if ( entry.size != file.length()
+				|| entry.lastModified != file.lastModified()
+				|| ! settingsHash.equals( entry.settingsHash ) )
+			return false;
+
+		return requireExport ? EXPORTED.equals( entry.status ) && Objects.equals( exportFormat, entry.exportFormat ) :
+				MATCHED.equals( entry.status ) || EXPORTED.equals( entry.status );
+	}
+
+	public synchronized void setMatched( MatchedTemplate< ? > matchedTemplate )
+	{
+		final Entry entry = createEntry( matchedTemplate.file, MATCHED );
+		entry.positionNanometer = matchedTemplate.matchedPositionNanometer;
+		entry.calibrationNanometer = matchedTemplate.calibratedRai.nanometerCalibration();
+		entry.sizePixels = matchedTemplate.sizePixels;
+		entry.score = matchedTemplate.score;
+		entry.secondPeakRatio = matchedTemplate.secondPeakRatio;
+		entry.peakSharpness = matchedTemplate.peakSharpness;
+		entry.angleDegrees = matchedTemplate.angleDegrees;
+		entry.scale = matchedTemplate.scale;
+		entry.isAmbiguous = matchedTemplate.isAmbiguous;
+		write();
+	}
+
+	/**
+	 * @return hash of the current settings, see {@link Entry#settingsHash}
+	 */
+	public String getSettingsHash()
+	{
+		return settingsHash;
+	}
+
+	/**
+	 * @param file
+	 * @return the entry of the file; null if there is none
+	 */
+	public synchronized Entry getEntry( File file )
+	{
+		return entries.get( file.getAbsolutePath() );
+	}
+
+	/**
+	 * @return a copy of the entries, sorted by file
+	 */
+	public synchronized List< Entry > getEntries()
+	{
+		return new ArrayList<>( entries.values() );
+	}
+
+	public synchronized void setExported( File file )
+	{
+		final Entry entry = entries.get( file.getAbsolutePath() );
+		if ( entry == null ) return;
+
+		entry.status = EXPORTED;
+		entry.exportFormat = exportFormat;
+		write();
+	}
+
+	public synchronized void setFailed( File file )
+	{
+		createEntry( file, FAILED );
+		write();
+	}
+
+	private Entry createEntry( File file, String status )
+	{
+		final Entry entry = new Entry();
+		entry.file = file.getAbsolutePath();
+		entry.size = file.length();
+		entry.lastModified = file.lastModified();
+		entry.settingsHash = settingsHash;
+		entry.status = status;
+		entries.put( entry.file, entry );
+		return entry;
+	}
+
+	/**
+	 * Hash of the {@link #RESULT_SETTINGS}, including
+	 * the size and modification time of the overview.
+	 */
+	private String getSettingsHash( TemplatesMatchingSettings settings )
+	{
+		final Map< String, Object > values = new TreeMap<>( mapper.convertValue( settings, Map.class ) );
+		values.keySet().retainAll( RESULT_SETTINGS );
+
+		if ( settings.overviewImageFile != null )
+		{
+			values.put( "overviewSize", settings.overviewImageFile.length() );
+			values.put( "overviewLastModified", settings.overviewImageFile.lastModified() );
+		}
+
+		return Utils.sha256( values.toString() );
+	}
+
+	private Map< String, Entry > read()
+	{
+		if ( ! manifestFile.exists() ) return new TreeMap<>();
+
+		try
+		{
+			return mapper.readValue( manifestFile, new TypeReference< TreeMap< String, Entry > >() {} );
+		}
+		catch ( IOException e )
+		{
+			Utils.log( "Could not read " + manifestFile + ", all templates will be matched: " + e );
+			return new TreeMap<>();
+		}
+	}
+
+	private void write()
+	{
+		final File tmpFile = new File( manifestFile.getParentFile(), FILE_NAME + ".tmp" );
+
+		try
+		{
+			mapper.writerWithDefaultPrettyPrinter().writeValue( tmpFile, entries );
+
+			try
+			{
+				Files.move( tmpFile.toPath(), manifestFile.toPath(),
+						StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+			}
+			catch ( AtomicMoveNotSupportedException e )
+			{
+				Files.move( tmpFile.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING );
+			}
+		}
+		catch ( IOException e )
+		{
+			Utils.log( "Could not write " + manifestFile + ": " + e );
+			e.printStackTrace();
+		}
+	}
+}
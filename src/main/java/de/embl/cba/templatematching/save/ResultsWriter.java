@@ -1,5 +1,421 @@
 package de.embl.cba.templatematching.save;
 
-public class ResultsWriter
+import de.embl.cba.templatematching.Utils;
+import de.embl.cba.templatematching.image.CalibratedRai;
+import de.embl.cba.templatematching.match.MatchedTemplate;
+import de.embl.cba.templatematching.match.TemplatesMatchingSettings;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Exports the overview and the matched templates as BigDataViewer HDF5
+ * or N5 (see {@link N5Export}), asynchronously from matching, or only writes
+ * references to the input files (see {@link InputFileReference}).
+ *
+ * All exports run one after the other on a dedicated writer thread, such that
+ * only one HDF5 file is written at a time. The resolution pyramid is computed
+ * with numThreads threads (see {@link Hdf5Export} and {@link N5Export}); lazily loaded images are
+ * not copied into memory, but their lower resolutions are computed from the
+ * already written levels.
+ *
+ * The overview is only exported if it changed: a key of its source file, angle,
+ * calibration and export settings is stored next to the export, and an export
+ * with the same key is reused, within a run as well as across runs.
+ *
+ * At most {@link TemplatesMatchingSettings#exportBacklogCapacity} exports are
+ * pending; further submissions block until an export is finished, which bounds
+ * the memory held by not yet exported images. {@link #awaitCompletion()}
+ * waits until everything is written.
+ */
+public class ResultsWriter< T extends RealType< T > & NativeType< T > >
 {
+	public static final String BDV_HDF5 = "BigDataViewer HDF5";
+	public static final String N5 = "N5";
+	public static final String REFERENCES = "References to Input Files";
+	public static final String MATCHES_TABLE_NAME = "matches.csv";
+	public static final String OVERVIEW_NAME = "overview";
+	public static final double OVERVIEW_Z_CALIBRATION_NANOMETER = 2000;
+	public static final String KEY_FILE_EXTENSION = ".key";
+
+	private final TemplatesMatchingSettings settings;
+	private final ExecutorService writerService;
+	private final ExecutorService service;
+	private final Semaphore backlog;
+	private final AtomicInteger numFailedExports;
+
+	/**
+	 * @param settings
+	 * @param service computes the N5 exports, see {@link N5Export}; may be shared,
+	 *                it must not be shut down before {@link #awaitCompletion()}
+	 */
+	public ResultsWriter( TemplatesMatchingSettings settings, ExecutorService service )
+	{
+		this.settings = settings;
+		this.service = service;
+		this.writerService = Executors.newSingleThreadExecutor();
+		this.backlog = new Semaphore( Math.max( 1, settings.exportBacklogCapacity ) );
+		this.numFailedExports = new AtomicInteger( 0 );
+
+		if ( REFERENCES.equals( settings.exportFormat ) )
+			Utils.log( "Writing references to the input files, in the format " + InputFileReference.FORMAT
+					+ ", which can only be opened with Plugins>Registration>Matched Template Browsing, "
+					+ "not with BigDataViewer itself." );
+	}
+
+	/**
+	 * @param overview
+	 * @param is3D
+	 * @param isMultiChannel if true, the third dimension of the overview are the channels
+	 * @param isInMemory if false, the overview is lazily loaded, see {@link Hdf5Export} and {@link N5Export}
+	 * @param sourceFile from which the overview was opened
+	 * @param angleDegrees by which the overview was rotated
+	 */
+	public void exportOverview(
+			CalibratedRai< T > overview,
+			boolean is3D,
+			boolean isMultiChannel,
+			boolean isInMemory,
+			File sourceFile,
+			double angleDegrees )
+	{
+		final String key = getOverviewKey( overview, sourceFile, angleDegrees );
+		final File keyFile = new File( getOutputPath( OVERVIEW_NAME + KEY_FILE_EXTENSION ) );
+
+		if ( isExported( OVERVIEW_NAME, keyFile, key ) )
+		{
+			Utils.log( "Overview has already been exported, skipping export." );
+			return;
+		}
+
+		// an interrupted export must not be taken as complete
+		keyFile.delete();
+
+		double[] calibration = new double[ 3 ];
+		calibration[ 0 ] = overview.nanometerCalibration()[ 0 ];
+		calibration[ 1 ] = overview.nanometerCalibration()[ 1 ];
+		calibration[ 2 ] = OVERVIEW_Z_CALIBRATION_NANOMETER;
+
+		RandomAccessibleInterval< T > overviewRai = overview.rai();
+
+		if ( !is3D ) // add z-dimension
+			overviewRai = Views.addDimension( overviewRai, 0, 0 );
+
+		if ( isMultiChannel ) // swap z and channel dimension
+			overviewRai = Views.permute( overviewRai, 2, 3 );
+		else
+			overviewRai = Views.addDimension( overviewRai, 0, 0 );
+
+		// add time dimension
+		overviewRai = Views.addDimension( overviewRai, 0, 0 );
+
+		submit( Views.zeroMin( overviewRai ), OVERVIEW_NAME, calibration, new double[ 3 ], isInMemory,
+				() -> writeKey( keyFile, key ) );
+	}
+
+	/**
+	 * @param template
+	 * @param isInMemory if false, the template is lazily loaded, see {@link Hdf5Export} and {@link N5Export}
+	 * @param onSuccess run on the writer thread after the template was written; may be null
+	 */
+	public void exportTemplate( MatchedTemplate< T > template, boolean isInMemory, Runnable onSuccess )
+	{
+		if ( REFERENCES.equals( settings.exportFormat ) )
+		{
+			writeTemplateReference( template, onSuccess );
+			return;
+		}
+
+		RandomAccessibleInterval< T > rai = template.calibratedRai.rai();
+
+		if ( rai.numDimensions() == 2 ) // add z-dimension
+			rai = Views.addDimension( rai, 0, 0 );
+
+		// add channel dimension
+		rai = Views.addDimension( rai, 0, 0 );
+
+		// add time dimension
+		rai = Views.addDimension( rai, 0, 0 );
+
+		submit( rai,
+				template.file.getName(),
+				template.calibratedRai.nanometerCalibration(),
+				template.matchedPositionNanometer,
+				isInMemory,
+				onSuccess );
+	}
+
+	/**
+	 * Writes a reference to the overview file, rather than exporting the overview.
+	 *
+	 * @param sourceFile from which the overview was opened
+	 * @param transform from overview pixels to the nanometer coordinates of the matches
+	 * @param isMultiChannel
+	 */
+	public void writeOverviewReference( File sourceFile, AffineTransform3D transform, boolean isMultiChannel )
+	{
+		writeReference( new InputFileReference( sourceFile, OVERVIEW_NAME, transform, isMultiChannel ), null );
+	}
+
+	private void writeTemplateReference( MatchedTemplate< T > template, Runnable onSuccess )
+	{
+		final double[] calibration = template.calibratedRai.nanometerCalibration();
+		final double[] position = template.matchedPositionNanometer;
+
+		final AffineTransform3D transform = new AffineTransform3D();
+		transform.set(
+				calibration[ 0 ], 0, 0, position[ 0 ],
+				0, calibration[ 1 ], 0, position[ 1 ],
+				0, 0, calibration[ 2 ], position.length > 2 ? position[ 2 ] : 0 );
+
+		writeReference( new InputFileReference( template.file, template.file.getName(), transform, false ), onSuccess );
+	}
+
+	private void writeReference( InputFileReference reference, Runnable onSuccess )
+	{
+		try
+		{
+			reference.write( new File( getOutputPath( reference.name + ".xml" ) ) );
+
+			if ( onSuccess != null )
+				onSuccess.run();
+		}
+		catch ( Throwable e )
+		{
+			Utils.log( "Error: Could not write reference to " + reference.file + ": " + e );
+			e.printStackTrace();
+			numFailedExports.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Writes one line per template with its position, calibration, size and scores,
+	 * for the templates which still exist and were matched with the given settings.
+	 *
+	 * @param entries
+	 * @param settingsHash see {@link ResultsManifest#getSettingsHash()}
+	 */
+	public static void writeMatchesTable(
+			File outputDirectory,
+			Collection< ResultsManifest.Entry > entries,
+			String settingsHash )
+	{
+		final File table = new File( outputDirectory, MATCHES_TABLE_NAME );
+
+		final ArrayList< String > lines = new ArrayList<>();
+		lines.add( "file,x_nm,y_nm,pixel_width_nm,pixel_height_nm,pixel_depth_nm,"
+				+ "width,height,depth,score,second_peak_ratio,peak_sharpness,angle_degrees,scale,ambiguous,status" );
+
+		for ( ResultsManifest.Entry entry : entries )
+		{
+			if ( entry.positionNanometer == null ) continue; // failed
+			if ( ! settingsHash.equals( entry.settingsHash ) ) continue;
+			if ( ! new File( entry.file ).exists() ) continue;
+
+			lines.add( quote( new File( entry.file ).getName() )
+					+ "," + entry.positionNanometer[ 0 ]
+					+ "," + entry.positionNanometer[ 1 ]
+					+ "," + getValue( entry.calibrationNanometer, 0 )
+					+ "," + getValue( entry.calibrationNanometer, 1 )
+					+ "," + getValue( entry.calibrationNanometer, 2 )
+					+ "," + getValue( entry.sizePixels, 0 )
+					+ "," + getValue( entry.sizePixels, 1 )
+					+ "," + getValue( entry.sizePixels, 2 )
+					+ "," + entry.score
+					+ "," + entry.secondPeakRatio
+					+ "," + entry.peakSharpness
+					+ "," + entry.angleDegrees
+					+ "," + entry.scale
+					+ "," + entry.isAmbiguous
+					+ "," + quote( entry.status ) );
+		}
+
+		try
+		{
+			Files.write( table.toPath(), lines, StandardCharsets.UTF_8 );
+			Utils.log( "Wrote " + ( lines.size() - 1 ) + " matches to " + table );
+		}
+		catch ( IOException e )
+		{
+			Utils.log( "Error: Could not write " + table + ": " + e );
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @return the text as quoted CSV field
+	 */
+	private static String quote( String text )
+	{
+		return "\"" + text.replace( "\"", "\"\"" ) + "\"";
+	}
+
+	private static String getValue( double[] values, int d )
+	{
+		return values != null && d < values.length ? String.valueOf( values[ d ] ) : "";
+	}
+
+	private static String getValue( long[] values, int d )
+	{
+		return values != null && d < values.length ? String.valueOf( values[ d ] ) : "";
+	}
+
+	/**
+	 * Blocks until all submitted exports are written and stops the writer thread.
+	 *
+	 * @return true if all exports succeeded
+	 */
+	public boolean awaitCompletion()
+	{
+		writerService.shutdown();
+
+		try
+		{
+			while ( ! writerService.awaitTermination( 1, TimeUnit.MINUTES ) )
+				Utils.log( "Waiting for " + getNumPendingExports() + " export(s) to finish..." );
+		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			return false;
+		}
+
+		if ( numFailedExports.get() > 0 )
+		{
+			Utils.log( "Error: " + numFailedExports.get() + " export(s) failed." );
+			return false;
+		}
+
+		return true;
+	}
+
+	private int getNumPendingExports()
+	{
+		return Math.max( 1, settings.exportBacklogCapacity ) - backlog.availablePermits();
+	}
+
+	private void submit(
+			RandomAccessibleInterval< T > rai,
+			String name,
+			double[] calibration,
+			double[] translation,
+			boolean isInMemory,
+			Runnable onSuccess )
+	{
+		try
+		{
+			backlog.acquire();
+		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			return;
+		}
+
+		writerService.submit( () ->
+		{
+			try
+			{
+				Utils.log( "Exporting " + name );
+
+				if ( N5.equals( settings.exportFormat ) )
+					new N5Export< T >( settings.numThreads, service ).export(
+							rai,
+							name,
+							getOutputPath( name ),
+							calibration,
+							"nanometer",
+							translation,
+							isInMemory );
+				else
+					new Hdf5Export< T >( settings.numThreads ).export(
+							rai,
+							name,
+							getOutputPath( name ),
+							calibration,
+							"nanometer",
+							translation,
+							isInMemory );
+
+				if ( onSuccess != null )
+					onSuccess.run();
+			}
+			catch ( Throwable e )
+			{
+				Utils.log( "Error: Could not export " + name + ": " + e );
+				e.printStackTrace();
+				numFailedExports.incrementAndGet();
+			}
+			finally
+			{
+				backlog.release();
+			}
+		} );
+	}
+
+	/**
+	 * The source file is identified by path, size and modification time,
+	 * rather than by hashing its (possibly many GB of) content.
+	 */
+	private String getOverviewKey( CalibratedRai< T > overview, File sourceFile, double angleDegrees )
+	{
+		final String description = sourceFile.getAbsolutePath()
+				+ ";" + sourceFile.length()
+				+ ";" + sourceFile.lastModified()
+				+ ";" + angleDegrees
+				+ ";" + settings.overviewInterpolation
+				+ ";" + Arrays.toString( overview.nanometerCalibration() )
+				+ ";" + Arrays.toString( Intervals.dimensionsAsLongArray( overview.rai() ) )
+				+ ";" + settings.exportFormat;
+
+		return Utils.sha256( description );
+	}
+
+	private boolean isExported( String name, File keyFile, String key )
+	{
+		if ( ! keyFile.exists() || ! new File( getOutputPath( name + ".xml" ) ).exists() )
+			return false;
+
+		try
+		{
+			return key.equals( new String( Files.readAllBytes( keyFile.toPath() ), StandardCharsets.UTF_8 ).trim() );
+		}
+		catch ( IOException e )
+		{
+			return false;
+		}
+	}
+
+	private static void writeKey( File keyFile, String key )
+	{
+		try
+		{
+			Files.write( keyFile.toPath(), key.getBytes( StandardCharsets.UTF_8 ) );
+		}
+		catch ( IOException e )
+		{
+			Utils.log( "Could not write " + keyFile + ": " + e );
+		}
+	}
+
+	private String getOutputPath( String name )
+	{
+		return settings.outputDirectory + File.separator + name;
+	}
 }
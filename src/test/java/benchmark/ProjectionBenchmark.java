@@ -0,0 +1,110 @@
+package benchmark;
+
+import de.embl.cba.templatematching.process.Projection;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.planar.PlanarImgs;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the pixel-wise and the plane-wise average and median projections
+ * of a 16-bit tomogram sized volume.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 2 )
+@Measurement( iterations = 5 )
+@Fork( 1 )
+public class ProjectionBenchmark
+{
+	private Img< UnsignedShortType > arrayImg;
+	private Img< UnsignedShortType > planarImg;
+	private ExecutorService service;
+
+	@Setup
+	public void setup()
+	{
+		arrayImg = ArrayImgs.unsignedShorts( 1024, 1024, 100 );
+		planarImg = PlanarImgs.unsignedShorts( 1024, 1024, 100 );
+
+		final Random random = new Random( 42 );
+		arrayImg.forEach( pixel -> pixel.set( random.nextInt( 65536 ) ) );
+		planarImg.forEach( pixel -> pixel.set( random.nextInt( 65536 ) ) );
+
+		service = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() );
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		service.shutdown();
+	}
+
+	@Benchmark
+	public Object pixelWiseArrayImg()
+	{
+		return new Projection<>( arrayImg, 2 ).setExecutorService( service ).setPlaneWise( false ).average();
+	}
+
+	@Benchmark
+	public Object planeWiseArrayImg()
+	{
+		return new Projection<>( arrayImg, 2 ).setExecutorService( service ).average();
+	}
+
+	@Benchmark
+	public Object pixelWisePlanarImg()
+	{
+		return new Projection<>( planarImg, 2 ).setExecutorService( service ).setPlaneWise( false ).average();
+	}
+
+	@Benchmark
+	public Object planeWisePlanarImg()
+	{
+		return new Projection<>( planarImg, 2 ).setExecutorService( service ).average();
+	}
+
+	@Benchmark
+	public Object planeWiseSingleThreadPlanarImg()
+	{
+		return new Projection<>( planarImg, 2 ).setNumThreads( 1 ).average();
+	}
+
+	@Benchmark
+	public Object pixelWiseMedianPlanarImg()
+	{
+		return new Projection<>( planarImg, 2 ).setExecutorService( service ).setPlaneWise( false ).median();
+	}
+
+	@Benchmark
+	public Object planeWiseMedianPlanarImg()
+	{
+		return new Projection<>( planarImg, 2 ).setExecutorService( service ).median();
+	}
+
+	@Benchmark
+	public Object planeWiseApproximateMedianPlanarImg()
+	{
+		return new Projection<>( planarImg, 2 ).setExecutorService( service ).setApproximateMedian( 1024 ).median();
+	}
+
+	public static void main( String[] args ) throws RunnerException
+	{
+		final Options options = new OptionsBuilder()
+				.include( ProjectionBenchmark.class.getSimpleName() )
+				.build();
+
+		new Runner( options ).run();
+	}
+}
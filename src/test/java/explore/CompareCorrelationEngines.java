@@ -0,0 +1,90 @@
+package explore;
+
+import de.embl.cba.templatematching.correlate.Correlators;
+import de.embl.cba.templatematching.correlate.PeakFinder;
+import de.embl.cba.templatematching.correlate.TemplateCorrelator;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.process.FloatProcessor;
+
+import java.io.File;
+
+/**
+ * Checks that the pure Java FFT correlation matches OpenCV's CV_TM_CCOEFF_NORMED
+ * on the test data: the maximal absolute difference of the correlation maps
+ * must be below TOLERANCE and both engines must find the same maximum.
+ *
+ * Templates are a crop of the overview itself (true match known) and a crop
+ * of another image (no true match). Exits with status 1 on failure.
+ */
+public class CompareCorrelationEngines
+{
+	public static final double TOLERANCE = 1.0E-3;
+	public static final String INPUT_DIRECTORY = "src/test/resources/input-data-00";
+
+	public static void main( String[] args )
+	{
+		final FloatProcessor overview = open( "tomo-projection-25_lm.tif" );
+		final FloatProcessor other = open( "tomo-projection-31_lm.tif" );
+
+		final FloatProcessor[] templates = new FloatProcessor[]{
+				crop( overview, overview.getWidth() / 3, overview.getHeight() / 4, 120, 100 ),
+				crop( other, other.getWidth() / 2, other.getHeight() / 2, 90, 110 ) };
+
+		boolean isPassed = true;
+
+		try ( TemplateCorrelator fft = Correlators.create( Correlators.FFT, overview, 4 );
+			  TemplateCorrelator openCv = Correlators.create( Correlators.OPENCV, overview, 1 ) )
+		{
+			for ( int i = 0; i < templates.length; i++ )
+			{
+				final FloatProcessor fftCorrelation = fft.correlate( templates[ i ] );
+				final FloatProcessor openCvCorrelation = openCv.correlate( templates[ i ] );
+
+				final double maxDifference = getMaxAbsoluteDifference( fftCorrelation, openCvCorrelation );
+
+				final PeakFinder peakFinder = new PeakFinder();
+				final PeakFinder.Peak fftMax = peakFinder.findMaximum( fftCorrelation );
+				final PeakFinder.Peak openCvMax = peakFinder.findMaximum( openCvCorrelation );
+
+				final boolean isSameMaximum = fftMax.x == openCvMax.x && fftMax.y == openCvMax.y;
+
+				IJ.log( "Template " + i + ": max. difference " + maxDifference
+						+ ", maximum FFT " + fftMax.x + ", " + fftMax.y
+						+ ", maximum OpenCV " + openCvMax.x + ", " + openCvMax.y );
+
+				isPassed &= maxDifference < TOLERANCE && isSameMaximum;
+			}
+		}
+
+		IJ.log( isPassed ? "Correlation engines agree." : "Correlation engines differ!" );
+
+		if ( ! isPassed ) System.exit( 1 );
+	}
+
+	private static FloatProcessor open( String name )
+	{
+		final ImagePlus imp = IJ.openImage( new File( INPUT_DIRECTORY, name ).getAbsolutePath() );
+		return imp.getProcessor().convertToFloatProcessor();
+	}
+
+	private static FloatProcessor crop( FloatProcessor processor, int x, int y, int width, int height )
+	{
+		processor.setRoi( x, y, width, height );
+		final FloatProcessor crop = ( FloatProcessor ) processor.crop();
+		processor.resetRoi();
+		return crop;
+	}
+
+	private static double getMaxAbsoluteDifference( FloatProcessor a, FloatProcessor b )
+	{
+		final float[] pixelsA = ( float[] ) a.getPixels();
+		final float[] pixelsB = ( float[] ) b.getPixels();
+
+		double max = 0;
+		for ( int i = 0; i < pixelsA.length; i++ )
+			max = Math.max( max, Math.abs( pixelsA[ i ] - pixelsB[ i ] ) );
+
+		return max;
+	}
+}
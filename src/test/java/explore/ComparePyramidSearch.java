@@ -0,0 +1,98 @@
+package explore;
+
+import de.embl.cba.templatematching.correlate.Correlators;
+import de.embl.cba.templatematching.correlate.PeakFinder;
+import de.embl.cba.templatematching.correlate.PyramidTemplateSearch;
+import de.embl.cba.templatematching.correlate.TemplateCorrelator;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.io.File;
+
+/**
+ * Checks that the coarse-to-fine pyramid search reports the same position
+ * as the exhaustive search on the test data: the positions must not differ
+ * by more than TOLERANCE pixels, for every number of pyramid levels.
+ *
+ * Templates are a crop of the overview itself (true match known) and the
+ * high magnification image, scaled to the pixel spacing of the low
+ * magnification image, in which it is contained. Exits with status 1 on failure.
+ */
+public class ComparePyramidSearch
+{
+	public static final int TOLERANCE = 1;
+	public static final int MAX_NUM_LEVELS = 4;
+	public static final int NUM_CANDIDATES = 5;
+	public static final String INPUT_DIRECTORY = "src/test/resources/input-data-00";
+
+	public static void main( String[] args )
+	{
+		final ImagePlus overviewImp = open( "tomo-projection-25_lm.tif" );
+		final FloatProcessor overview = overviewImp.getProcessor().convertToFloatProcessor();
+
+		final FloatProcessor[] templates = new FloatProcessor[]{
+				crop( overview, overview.getWidth() / 3, overview.getHeight() / 4, 120, 100 ),
+				scaleToOverview( open( "tomo-projection-25_hm.tif" ), overviewImp ) };
+
+		boolean isPassed = true;
+
+		try ( TemplateCorrelator exhaustive = Correlators.create( Correlators.FFT, overview, 4 ) )
+		{
+			for ( int i = 0; i < templates.length; i++ )
+			{
+				final PeakFinder.Peak expected =
+						new PeakFinder().findMaximum( exhaustive.correlate( templates[ i ] ) );
+
+				IJ.log( "Template " + i + ": exhaustive " + expected.x + ", " + expected.y );
+
+				for ( int numLevels = 1; numLevels <= MAX_NUM_LEVELS; numLevels++ )
+				{
+					try ( PyramidTemplateSearch pyramid = new PyramidTemplateSearch(
+							overview, numLevels, NUM_CANDIDATES, Correlators.FFT, 4 ) )
+					{
+						final PyramidTemplateSearch.Match match = pyramid.search( templates[ i ] );
+						final int x = match.offset[ 0 ] + match.position[ 0 ];
+						final int y = match.offset[ 1 ] + match.position[ 1 ];
+
+						final boolean isSamePosition =
+								Math.abs( x - expected.x ) <= TOLERANCE && Math.abs( y - expected.y ) <= TOLERANCE;
+
+						IJ.log( "Template " + i + ", " + numLevels + " levels: pyramid " + x + ", " + y
+								+ ( isSamePosition ? "" : " differs!" ) );
+
+						isPassed &= isSamePosition;
+					}
+				}
+			}
+		}
+
+		IJ.log( isPassed ? "Pyramid and exhaustive search agree." : "Pyramid and exhaustive search differ!" );
+
+		if ( ! isPassed ) System.exit( 1 );
+	}
+
+	private static ImagePlus open( String name )
+	{
+		return IJ.openImage( new File( INPUT_DIRECTORY, name ).getAbsolutePath() );
+	}
+
+	private static FloatProcessor scaleToOverview( ImagePlus template, ImagePlus overview )
+	{
+		final double scale = template.getCalibration().pixelWidth / overview.getCalibration().pixelWidth;
+		final FloatProcessor processor = template.getProcessor().convertToFloatProcessor();
+		processor.setInterpolationMethod( ImageProcessor.BILINEAR );
+		return ( FloatProcessor ) processor.resize(
+				Math.max( 1, ( int ) Math.round( processor.getWidth() * scale ) ),
+				Math.max( 1, ( int ) Math.round( processor.getHeight() * scale ) ) );
+	}
+
+	private static FloatProcessor crop( FloatProcessor processor, int x, int y, int width, int height )
+	{
+		processor.setRoi( x, y, width, height );
+		final FloatProcessor crop = ( FloatProcessor ) processor.crop();
+		processor.resetRoi();
+		return crop;
+	}
+}